@@ -143,6 +143,27 @@ public class ThreadLocal<T> {
         return setInitialValue();
     }
 
+    /**
+     * 返回此线程本地变量在当前线程中的值。和get不同，没有值时直接返回null，
+     * 不会调用initialValue，也不会在当前线程中留下初始值。
+     *
+     * 主要给线程池使用：提交任务时要读出上下文载体在提交线程中的值，
+     * 但不能因此替提交线程初始化它们。
+     *
+     * @return 当前线程中的值，或者null
+     */
+    public T getIfPresent() {
+        ThreadLocalMap map = getMap(Thread.currentThread());
+        if (map != null) {
+            ThreadLocalMap.Entry e = map.getEntry(this);
+            if (e != null) {
+                @SuppressWarnings("unchecked") T result = (T) e.value;
+                return result;
+            }
+        }
+        return null;
+    }
+
     /**
      * set()的另一种实现形式，用来初始化值。如果用户重写了set()方法，那么就使用set()方法
      */
@@ -225,6 +246,77 @@ public class ThreadLocal<T> {
         return new ThreadLocalMap(parentMap);
     }
 
+    /**
+     * 返回当前线程ThreadLocalMap的一份副本（快照），当前线程没有任何线程本地变量时返回null。
+     * 返回值对调用方是不透明的，只能交给{@link #resetThreadLocals}使用。
+     *
+     * 主要给线程池使用：工作线程是长期存活的，任务留在threadLocals中的值会一直可达
+     * （参考test包下的ThreadLocalOOM）。线程池在工作线程执行第一个任务之前取一次快照，
+     * 之后每个任务结束时把threadLocals整体恢复成快照的样子，任务留下的条目就随着旧的map
+     * 一起被回收了，不需要一个一个地remove()。
+     *
+     * @return 快照，或者null
+     */
+    public static Object captureThreadLocals() {
+        return captureThreadLocals(null);
+    }
+
+    /**
+     * 和{@link #captureThreadLocals()}一样，但是快照中不包含retained这个线程本地变量，
+     * 它的值交给{@link #resetThreadLocals(Object, ThreadLocal)}单独保留。
+     * 除retained之外没有其他线程本地变量时返回null。
+     *
+     * @param retained 不放进快照的线程本地变量，可以为null
+     * @return 快照，或者null
+     */
+    public static Object captureThreadLocals(ThreadLocal<?> retained) {
+        ThreadLocalMap map = Thread.currentThread().threadLocals;
+        if (map == null || map.size == 0)
+            return null;
+        ThreadLocalMap m = map.copy();
+        if (retained != null)
+            m.remove(retained);
+        return (m.size == 0) ? null : m;
+    }
+
+    /**
+     * 把当前线程的threadLocals整体替换为{@link #captureThreadLocals}得到的快照的一份副本，
+     * 快照之后新设置的值全部丢弃，快照之后被修改的值恢复为快照时的值。
+     * 快照为null时直接丢弃整个map，这种最常见的情况没有任何分配。
+     * 快照本身不会被修改，可以反复使用。
+     *
+     * @param snapshot captureThreadLocals的返回值
+     */
+    public static void resetThreadLocals(Object snapshot) {
+        resetThreadLocals(snapshot, null);
+    }
+
+    /**
+     * 和{@link #resetThreadLocals(Object)}一样，但是retained这个线程本地变量的当前值会被保留下来，
+     * 它是否在快照中都不影响。线程池用它在工作线程上保存线程自己的状态（比如所属的Worker），
+     * 不被每个任务之后的恢复清掉。
+     * 快照为null并且map没有扩容过时，原地清空map只留下retained的条目，同样没有任何分配。
+     *
+     * @param snapshot captureThreadLocals的返回值
+     * @param retained 需要保留当前值的线程本地变量，可以为null
+     */
+    public static void resetThreadLocals(Object snapshot, ThreadLocal<?> retained) {
+        Thread t = Thread.currentThread();
+        ThreadLocalMap map = t.threadLocals;
+        ThreadLocalMap.Entry e = (retained == null || map == null) ? null : map.getEntry(retained);
+        if (snapshot == null) {
+            if (e != null)
+                map.retainOnly(e);
+            else if (map != null)
+                t.threadLocals = null;
+        } else {
+            ThreadLocalMap m = ((ThreadLocalMap) snapshot).copy();
+            if (e != null)
+                m.set(retained, e.value);
+            t.threadLocals = m;
+        }
+    }
+
     /**
      * Method childValue is visibly defined in subclass
      * InheritableThreadLocal, but is internally defined here for the
@@ -364,6 +456,59 @@ public class ThreadLocal<T> {
             }
         }
 
+        /**
+         * 构造一个指定长度的空map，只给copy()使用
+         */
+        private ThreadLocalMap(int len) {
+            table = new ThreadLocalMap.Entry[len];
+            setThreshold(len);
+        }
+
+        /**
+         * 复制一份map：和继承用的构造方法类似，但是值直接复制而不调用childValue，
+         * 过期的条目（stale entries）不会被复制。
+         */
+        ThreadLocalMap copy() {
+            ThreadLocalMap.Entry[] tab = table;
+            int len = tab.length;
+            ThreadLocalMap m = new ThreadLocalMap(len);
+            ThreadLocalMap.Entry[] t = m.table;
+            for (int j = 0; j < len; j++) {
+                ThreadLocalMap.Entry e = tab[j];
+                if (e != null) {
+                    java.lang.ThreadLocal<?> key = e.get();
+                    if (key != null) {
+                        // 过期条目被跳过后原来的位置可能不再连续，所以需要重新探测位置
+                        int h = key.threadLocalHashCode & (len - 1);
+                        while (t[h] != null)
+                            h = nextIndex(h, len);
+                        t[h] = new ThreadLocalMap.Entry(key, e.value);
+                        m.size++;
+                    }
+                }
+            }
+            return m;
+        }
+
+        /**
+         * 清空map，只留下条目e（它的key不能是过期的）。map还是初始容量时原地清空，不分配；
+         * 扩容过的map换成一个初始容量的新table，以免之后每次清空都要遍历一张大表。
+         */
+        void retainOnly(ThreadLocalMap.Entry e) {
+            ThreadLocalMap.Entry[] tab = table;
+            int len = tab.length;
+            if (len == INITIAL_CAPACITY) {
+                for (int j = 0; j < len; j++)
+                    tab[j] = null;
+            } else {
+                tab = table = new ThreadLocalMap.Entry[len = INITIAL_CAPACITY];
+                setThreshold(len);
+            }
+            // 其他条目被清掉之后，e原来的位置不一定还能探测到，放回它的初始位置
+            tab[e.get().threadLocalHashCode & (len - 1)] = e;
+            size = 1;
+        }
+
         /**
          * 通过key获取entry。这个方法只处理能够直接命中的现有的key，否则将调用getEntryAfterMiss()进行处理
          * 希望通过这个方法最大限度地提高直接命中的性能
@@ -0,0 +1,87 @@
+package com.bitc.JDK.lang.test;
+
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ThreadLocalOOM在线程池中的版本：线程池的工作线程会一直存活，任务留在threadLocals中的值
+ * 和ThreadLocalOOM中一样永远不会被回收。
+ * 开启setThreadLocalScrubbing之后，每个任务结束时工作线程的threadLocals会被整体恢复，
+ * 任务中没有remove()的值也能被回收。
+ * <p>
+ * 建议使用 -Xmx64m 运行，传入参数 off 可以关闭清理，对比出现OOM的情况。
+ */
+public class ThreadLocalPoolNoOOM {
+
+    private static final int TASKS = 1000;
+    private static final int EMPTY_TASKS = 1000000;
+
+    public static void main(String[] args) throws InterruptedException {
+        boolean scrub = args.length == 0 || !"off".equals(args[0]);
+
+        // 先测量清理本身的开销：空任务分别在关闭和开启清理时的平均耗时
+        System.out.println("scrubbing off: " + nanosPerTask(false) + " ns/task");
+        System.out.println("scrubbing on:  " + nanosPerTask(true) + " ns/task");
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.setThreadLocalScrubbing(scrub);
+        final CountDownLatch done = new CountDownLatch(TASKS);
+        for (int i = 0; i < TASKS; i++) {
+            final int id = i;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // 和ThreadLocalOOM一样没有调用remove()，TestClass中的数组大约4MB
+                    TestClass t = new TestClass(id);
+                    if (id % 100 == 0)
+                        t.printId();
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        pool.shutdown();
+        System.out.println(TASKS + " tasks finished, scrubbing " + (scrub ? "on" : "off"));
+    }
+
+    private static long nanosPerTask(boolean scrub) throws InterruptedException {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.setThreadLocalScrubbing(scrub);
+        final CountDownLatch done = new CountDownLatch(EMPTY_TASKS);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < EMPTY_TASKS; i++)
+            pool.execute(task);
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        return elapsed / EMPTY_TASKS;
+    }
+
+    static class TestClass {
+        private int id;
+        private int[] arr;
+        private ThreadLocal<TestClass> threadLocal;
+
+        TestClass(int id) {
+            this.id = id;
+            arr = new int[1000000];
+            threadLocal = new ThreadLocal<>();
+            threadLocal.set(this);
+        }
+
+        public void printId() {
+            System.out.println(threadLocal.get().id);
+        }
+    }
+}
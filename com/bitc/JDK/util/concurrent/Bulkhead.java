@@ -0,0 +1,355 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Divides the workers of one {@link ThreadPoolExecutor} into named
+ * partitions, so that tasks calling one slow dependency can occupy at
+ * most their partition's share of the pool and the rest stays
+ * available to everything else.
+ *
+ * <pre> {@code
+ * Bulkhead bulkhead = new Bulkhead(pool);
+ * Bulkhead.Partition payments = bulkhead.addPartition("payments", 8, 32);
+ * Bulkhead.Partition search = bulkhead.addPartition("search", 16, 64);
+ * Future<Receipt> f = payments.submit(() -> client.charge(order));}</pre>
+ *
+ * <p>A partition lets at most {@code maxConcurrent} of its tasks into
+ * the pool at a time, counting those in the pool's queue as well as
+ * those running, and holds up to {@code maxQueued} more in a queue of
+ * its own, handing them to the pool as its tasks complete. A task
+ * arriving when both are full is rejected at once, without reaching
+ * the pool. The limits are enforced with atomic counters and a
+ * non-blocking queue per partition, so partitions share the pool's
+ * threads without separate pools or a common lock. For full isolation
+ * the pool's maximum size should be at least the sum of the
+ * partitions' {@code maxConcurrent}, and its queue should be unbounded.
+ *
+ * <p>A task keeps its place in the partition until it completes or is
+ * cancelled. Tasks are handed to the pool as {@link Future}s, so that
+ * a task dropped by {@link ThreadPoolExecutor#purge} after being
+ * cancelled, or returned by {@link ThreadPoolExecutor#shutdownNow}
+ * and then cancelled, frees its place. The pool's rejected execution
+ * handler must not silently discard tasks, as a discarded task would
+ * hold its place forever; the constructor refuses a pool using
+ * {@link ThreadPoolExecutor.DiscardPolicy} or
+ * {@link ThreadPoolExecutor.DiscardOldestPolicy}.
+ */
+public class Bulkhead {
+
+    private final ThreadPoolExecutor pool;
+    private final ConcurrentHashMap<String, Partition> partitions =
+            new ConcurrentHashMap<String, Partition>();
+
+    /**
+     * Creates a bulkhead over the given pool, with no partitions.
+     *
+     * @param pool the pool to run tasks on
+     * @throws IllegalArgumentException if the pool's rejected execution
+     *                                  handler discards tasks
+     * @throws NullPointerException     if pool is null
+     */
+    public Bulkhead(ThreadPoolExecutor pool) {
+        if (pool == null)
+            throw new NullPointerException();
+        RejectedExecutionHandler handler = pool.getRejectedExecutionHandler();
+        if (handler instanceof ThreadPoolExecutor.DiscardPolicy ||
+                handler instanceof ThreadPoolExecutor.DiscardOldestPolicy)
+            throw new IllegalArgumentException("the pool discards rejected tasks");
+        this.pool = pool;
+    }
+
+    /**
+     * Adds a partition.
+     *
+     * @param name          the partition name
+     * @param maxConcurrent the most tasks of the partition in the pool
+     *                      at a time
+     * @param maxQueued     the most tasks waiting in the partition for
+     *                      the pool
+     * @return the new partition
+     * @throws IllegalArgumentException if maxConcurrent is not positive,
+     *                                  maxQueued is negative, or a
+     *                                  partition with the name exists
+     * @throws NullPointerException     if name is null
+     */
+    public Partition addPartition(String name, int maxConcurrent, int maxQueued) {
+        if (name == null)
+            throw new NullPointerException();
+        if (maxConcurrent <= 0 || maxQueued < 0)
+            throw new IllegalArgumentException();
+        Partition p = new Partition(name, maxConcurrent, maxQueued);
+        if (partitions.putIfAbsent(name, p) != null)
+            throw new IllegalArgumentException("partition " + name + " exists");
+        return p;
+    }
+
+    /**
+     * Returns the partition with the given name, or null if there is
+     * none.
+     *
+     * @param name the partition name
+     * @return the partition, or null
+     */
+    public Partition getPartition(String name) {
+        return partitions.get(name);
+    }
+
+    /**
+     * Returns all partitions.
+     *
+     * @return the partitions
+     */
+    public Collection<Partition> getPartitions() {
+        return Collections.unmodifiableCollection(
+                new ArrayList<Partition>(partitions.values()));
+    }
+
+    /**
+     * Returns the pool the partitions run on.
+     *
+     * @return the pool
+     */
+    public ThreadPoolExecutor getPool() {
+        return pool;
+    }
+
+    /**
+     * A share of the pool with its own concurrency and queue limits.
+     */
+    public final class Partition implements Executor {
+        private final String name;
+        private final int maxConcurrent;
+        private final int maxQueued;
+
+        /**
+         * Tasks handed to the pool and not yet completed.
+         */
+        private final AtomicInteger admitted = new AtomicInteger();
+
+        /**
+         * Tasks reserved a place in, or waiting in, the partition's
+         * queue.
+         */
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicInteger running = new AtomicInteger();
+        private final ConcurrentLinkedQueue<Runnable> waiting =
+                new ConcurrentLinkedQueue<Runnable>();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        Partition(String name, int maxConcurrent, int maxQueued) {
+            this.name = name;
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+        }
+
+        /**
+         * Runs the task in this partition.
+         *
+         * @param task the task
+         * @throws RejectedExecutionException if the partition is full,
+         *                                    or the pool rejects the task
+         * @throws NullPointerException       if task is null
+         */
+        public void execute(Runnable task) {
+            if (!tryExecute(task))
+                throw new RejectedExecutionException("Task " + task +
+                        " rejected from partition " + name);
+        }
+
+        /**
+         * Runs the task in this partition if it has room, without the
+         * cost of constructing an exception if it has not.
+         *
+         * @param task the task
+         * @return {@code true} if the task was accepted, {@code false}
+         * if the partition is full
+         * @throws RejectedExecutionException if the pool rejects the task
+         * @throws NullPointerException       if task is null
+         */
+        public boolean tryExecute(Runnable task) {
+            if (task == null)
+                throw new NullPointerException();
+            // Waiting tasks go first
+            if (waiting.isEmpty() && tryAdmit()) {
+                submit(new Admitted(task), true);
+                return true;
+            }
+            if (queued.incrementAndGet() > maxQueued) {
+                queued.decrementAndGet();
+                rejected.increment();
+                return false;
+            }
+            waiting.offer(task);
+            // a task may have completed since tryAdmit failed
+            admitWaiting();
+            return true;
+        }
+
+        /**
+         * Submits a value-returning task to this partition.
+         *
+         * @param task the task
+         * @param <T>  the type of the task's result
+         * @return a future for the task
+         * @throws RejectedExecutionException if the partition is full,
+         *                                    or the pool rejects the task
+         * @throws NullPointerException       if task is null
+         */
+        public <T> Future<T> submit(Callable<T> task) {
+            if (task == null)
+                throw new NullPointerException();
+            FutureTask<T> f = new FutureTask<T>(task);
+            execute(f);
+            return f;
+        }
+
+        private boolean tryAdmit() {
+            for (; ; ) {
+                int n = admitted.get();
+                if (n >= maxConcurrent)
+                    return false;
+                if (admitted.compareAndSet(n, n + 1))
+                    return true;
+            }
+        }
+
+        /**
+         * Hands waiting tasks to the pool while there is room.
+         */
+        private void admitWaiting() {
+            while (!waiting.isEmpty() && tryAdmit()) {
+                Runnable task = waiting.poll();
+                if (task == null) {
+                    admitted.decrementAndGet();
+                    continue;
+                }
+                queued.decrementAndGet();
+                submit(new Admitted(task), false);
+            }
+        }
+
+        /**
+         * Hands an admitted task to the pool. If the pool rejects it,
+         * the exception is rethrown to a submitting caller; a task
+         * that had waited in the partition is instead dropped, and
+         * cancelled if it is a Future.
+         */
+        private void submit(Admitted a, boolean caller) {
+            try {
+                pool.execute(a);
+            } catch (RejectedExecutionException ex) {
+                admitted.decrementAndGet();
+                rejected.increment();
+                if (caller)
+                    throw ex;
+                if (a.task instanceof Future)
+                    ((Future<?>) a.task).cancel(false);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMaxConcurrent() {
+            return maxConcurrent;
+        }
+
+        public int getMaxQueued() {
+            return maxQueued;
+        }
+
+        /**
+         * Returns the number of this partition's tasks in the pool,
+         * queued there or running.
+         */
+        public int getAdmittedCount() {
+            return admitted.get();
+        }
+
+        /**
+         * Returns the number of this partition's tasks running on a
+         * worker.
+         */
+        public int getRunningCount() {
+            return running.get();
+        }
+
+        /**
+         * Returns the number of tasks waiting in this partition.
+         */
+        public int getQueuedCount() {
+            return queued.get();
+        }
+
+        public long getCompletedCount() {
+            return completed.sum();
+        }
+
+        /**
+         * Returns the number of tasks rejected by this partition or,
+         * on its behalf, by the pool.
+         */
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
+
+        public String toString() {
+            return name + "[running = " + running.get() +
+                    ", admitted = " + admitted.get() + "/" + maxConcurrent +
+                    ", queued = " + queued.get() + "/" + maxQueued +
+                    ", completed = " + completed.sum() +
+                    ", rejected = " + rejected.sum() + "]";
+        }
+
+        /**
+         * A task admitted to the pool; frees its place and admits a
+         * waiting task when it completes or is cancelled. An exception
+         * thrown by the task is rethrown, so that the pool sees it as
+         * it would the task's own.
+         */
+        private final class Admitted extends FutureTask<Void> {
+            final Runnable task;
+
+            Admitted(Runnable task) {
+                super(task, null);
+                this.task = task;
+            }
+
+            public void run() {
+                running.incrementAndGet();
+                try {
+                    super.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+
+            protected void setException(Throwable t) {
+                super.setException(t);
+                if (t instanceof RuntimeException)
+                    throw (RuntimeException) t;
+                if (t instanceof Error)
+                    throw (Error) t;
+            }
+
+            protected void done() {
+                if (isCancelled()) {
+                    if (task instanceof Future)
+                        ((Future<?>) task).cancel(false);
+                } else {
+                    completed.increment();
+                }
+                admitted.decrementAndGet();
+                admitWaiting();
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.bitc.JDK.util.concurrent;
+
+/**
+ * The Reactive Streams interfaces, as added to {@code java.util.concurrent}
+ * in Java 9, for flow-controlled components in which a
+ * {@link Publisher} produces items consumed by one or more
+ * {@link Subscriber Subscribers}, each managed by a
+ * {@link Subscription}. A subscriber receives at most as many items as
+ * it has requested through its subscription, so a fast publisher
+ * cannot overrun a slow subscriber.
+ *
+ * <p>Signals to a subscriber ({@code onSubscribe}, {@code onNext},
+ * {@code onError}, {@code onComplete}) are issued serially, and
+ * {@code onSubscribe} comes first. {@code onError} and
+ * {@code onComplete} are terminal: nothing follows them.
+ *
+ * 注：JDK 9之前没有这个类，这里保持和JDK 9的接口一致，以便和各种响应式库的适配器互通
+ */
+public final class Flow {
+
+    private Flow() {
+    }
+
+    /**
+     * A producer of items received by subscribers.
+     *
+     * @param <T> the published item type
+     */
+    @FunctionalInterface
+    public static interface Publisher<T> {
+        /**
+         * Adds the given subscriber, which is then sent
+         * {@code onSubscribe}, or {@code onError} if it cannot be
+         * subscribed.
+         *
+         * @param subscriber the subscriber
+         * @throws NullPointerException if subscriber is null
+         */
+        public void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items.
+     *
+     * @param <T> the subscribed item type
+     */
+    public static interface Subscriber<T> {
+        /**
+         * Invoked before any other method for the subscription.
+         *
+         * @param subscription the new subscription
+         */
+        public void onSubscribe(Subscription subscription);
+
+        /**
+         * Invoked with an item, at most as many times as requested.
+         *
+         * @param item the item
+         */
+        public void onNext(T item);
+
+        /**
+         * Invoked when the publisher or subscription fails; no other
+         * method is invoked afterwards.
+         *
+         * @param throwable the exception
+         */
+        public void onError(Throwable throwable);
+
+        /**
+         * Invoked when no more items will be sent; no other method is
+         * invoked afterwards.
+         */
+        public void onComplete();
+    }
+
+    /**
+     * The link between a publisher and one of its subscribers.
+     */
+    public static interface Subscription {
+        /**
+         * Adds n items to the subscriber's unfulfilled demand. If n is
+         * not positive, the subscriber is sent {@code onError} with an
+         * {@link IllegalArgumentException}.
+         *
+         * @param n the increment of demand; {@code Long.MAX_VALUE} may
+         *          be treated as unbounded
+         */
+        public void request(long n);
+
+        /**
+         * Causes the subscriber to (eventually) stop receiving
+         * messages.
+         */
+        public void cancel();
+    }
+
+    /**
+     * A component that is both a subscriber and a publisher.
+     *
+     * @param <T> the subscribed item type
+     * @param <R> the published item type
+     */
+    public static interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+    }
+
+    static final int DEFAULT_BUFFER_SIZE = 256;
+
+    /**
+     * Returns a default value for buffer sizes and demand windows:
+     * 256.
+     *
+     * @return the buffer size value
+     */
+    public static int defaultBufferSize() {
+        return DEFAULT_BUFFER_SIZE;
+    }
+}
@@ -0,0 +1,410 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Runs tasks on a {@link ThreadPoolExecutor} so that all tasks with the
+ * same key run one at a time, in submission order, on one lane: a
+ * bounded mailbox drained by a single pool task at a time. State owned
+ * by a key therefore needs no locking, and the tasks of one lane that
+ * are drained in the same batch, up to 256 of them, run back to back
+ * on the same worker thread with that state in its cache, instead of
+ * being spread over all workers through the pool's shared queue. The
+ * next batch may run on any worker, so thread affinity lasts only as
+ * long as a batch.
+ *
+ * <p>A key is hashed to one of a fixed number of virtual buckets, many
+ * more than there are lanes, and each bucket is assigned to a lane.
+ * When rebalancing is enabled and the lane of a bucket is more than
+ * half full, a task whose bucket has nothing queued or running moves
+ * the whole bucket to the least loaded lane. Only idle buckets move,
+ * so per-key ordering holds across a move.
+ *
+ * <p>When a mailbox is full, {@link #execute} blocks until it has room
+ * and {@link #offer} fails, so a slow lane pushes back on the threads
+ * submitting to it rather than growing without bound.
+ *
+ * <p>A lane runs a bounded batch of tasks before giving up its
+ * worker, so pools with fewer threads than lanes still serve all of
+ * them. An exception thrown by a task propagates to the pool as if
+ * the task had been submitted directly; the lane's remaining tasks are
+ * scheduled again. Lanes are handed to the pool without involving its
+ * rejected execution handler, which could otherwise discard a lane
+ * and strand its tasks, or run it nested inside the lane handing
+ * itself over. If the pool cannot take a lane that still has tasks,
+ * because it is saturated or shut down, the lane keeps running them on
+ * the worker it has; once the pool is stopped by
+ * {@link ThreadPoolExecutor#shutdownNow}, they are dropped instead,
+ * and those that are {@link Future}s are cancelled. If the pool
+ * cannot take a lane that a submission has just woken, the submitting
+ * thread runs the lane itself, much as under
+ * {@link ThreadPoolExecutor.CallerRunsPolicy}, so a saturated pool
+ * slows submitters down rather than losing their tasks; an exception
+ * thrown by a task run this way propagates to the submitter. Tasks are not
+ * accepted once the pool is shut down.
+ */
+public class KeyAffinityExecutor {
+
+    /**
+     * The number of virtual buckets per lane.
+     */
+    private static final int BUCKETS_PER_LANE = 64;
+
+    /**
+     * The most tasks a lane runs per turn on a worker.
+     */
+    private static final int BATCH = 256;
+
+    private final ThreadPoolExecutor pool;
+    private final Lane[] lanes;
+    private final boolean rebalance;
+
+    /**
+     * Per bucket, the lane it is assigned to in the high 32 bits and
+     * the number of its tasks queued or running in the low 32 bits.
+     * Changed only by compare-and-set, so a bucket moves only while
+     * its count is zero.
+     */
+    private final AtomicLongArray buckets;
+
+    private final AtomicLong moves = new AtomicLong();
+
+    /**
+     * Creates an affinity executor on the given pool.
+     *
+     * @param pool            the pool to run lanes on
+     * @param lanes           the number of lanes, usually the pool's
+     *                        maximum pool size
+     * @param mailboxCapacity the most tasks each lane holds
+     * @param rebalance       whether idle buckets move off overloaded
+     *                        lanes
+     * @throws IllegalArgumentException if lanes or mailboxCapacity is
+     *                                  not positive
+     * @throws NullPointerException     if pool is null
+     */
+    public KeyAffinityExecutor(ThreadPoolExecutor pool, int lanes,
+                               int mailboxCapacity, boolean rebalance) {
+        if (pool == null)
+            throw new NullPointerException();
+        if (lanes <= 0 || mailboxCapacity <= 0 ||
+                lanes > Integer.MAX_VALUE / BUCKETS_PER_LANE)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.rebalance = rebalance;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++)
+            this.lanes[i] = new Lane(mailboxCapacity);
+        int n = lanes * BUCKETS_PER_LANE;
+        buckets = new AtomicLongArray(n);
+        for (int b = 0; b < n; b++)
+            buckets.set(b, (long) (b % lanes) << 32);
+    }
+
+    /**
+     * Runs the task after all previously submitted tasks with an
+     * equal key, waiting if the key's lane is full.
+     *
+     * @param key  the key; tasks with equal keys never run concurrently
+     * @param task the task
+     * @throws InterruptedException       if interrupted while waiting;
+     *                                    the task is not run
+     * @throws RejectedExecutionException if the pool is shut down;
+     *                                    the task is not run
+     * @throws NullPointerException       if key or task is null
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        if (task == null)
+            throw new NullPointerException();
+        checkRunning(task);
+        int b = bucketOf(key);
+        Lane lane = enter(b);
+        Item item = new Item(task, b);
+        try {
+            lane.mailbox.put(item);
+        } catch (InterruptedException ie) {
+            leave(b);
+            throw ie;
+        }
+        lane.schedule(item);
+    }
+
+    /**
+     * Runs the task after all previously submitted tasks with an
+     * equal key, if the key's lane has room.
+     *
+     * @param key  the key; tasks with equal keys never run concurrently
+     * @param task the task
+     * @return {@code true} if the task was accepted, {@code false} if
+     * its lane is full
+     * @throws RejectedExecutionException if the pool is shut down;
+     *                                    the task is not run
+     * @throws NullPointerException       if key or task is null
+     */
+    public boolean offer(Object key, Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        checkRunning(task);
+        int b = bucketOf(key);
+        Lane lane = enter(b);
+        Item item = new Item(task, b);
+        if (!lane.mailbox.offer(item)) {
+            leave(b);
+            return false;
+        }
+        lane.schedule(item);
+        return true;
+    }
+
+    /**
+     * Returns the number of tasks in all mailboxes.
+     *
+     * @return the number of queued tasks
+     */
+    public int getQueuedTaskCount() {
+        int n = 0;
+        for (Lane lane : lanes)
+            n += lane.mailbox.size();
+        return n;
+    }
+
+    /**
+     * Returns the number of tasks in each lane's mailbox.
+     *
+     * @return the mailbox sizes, indexed by lane
+     */
+    public int[] getMailboxSizes() {
+        int[] sizes = new int[lanes.length];
+        for (int i = 0; i < sizes.length; i++)
+            sizes[i] = lanes[i].mailbox.size();
+        return sizes;
+    }
+
+    /**
+     * Returns the number of times a bucket of keys has moved to
+     * another lane.
+     *
+     * @return the number of bucket moves
+     */
+    public long getRebalanceCount() {
+        return moves.get();
+    }
+
+    /**
+     * Returns the pool lanes run on.
+     *
+     * @return the pool
+     */
+    public ThreadPoolExecutor getPool() {
+        return pool;
+    }
+
+    private void checkRunning(Runnable task) {
+        if (pool.isShutdown())
+            throw rejected(task);
+    }
+
+    private static RejectedExecutionException rejected(Runnable task) {
+        return new RejectedExecutionException("Task " + task.toString() +
+                " rejected: the pool is shut down");
+    }
+
+    private static void rethrow(Throwable failure) {
+        if (failure instanceof RuntimeException)
+            throw (RuntimeException) failure;
+        if (failure instanceof Error)
+            throw (Error) failure;
+    }
+
+    private int bucketOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return (h & 0x7fffffff) % buckets.length();
+    }
+
+    /**
+     * Counts a task into its bucket, first moving the bucket if it is
+     * idle and its lane is overloaded, and returns the bucket's lane.
+     */
+    private Lane enter(int b) {
+        for (; ; ) {
+            long v = buckets.get(b);
+            int lane = (int) (v >>> 32);
+            int next = lane;
+            if ((int) v == 0 && rebalance)
+                next = rebalanceTarget(lane);
+            if (buckets.compareAndSet(b, v, ((long) next << 32) | ((int) v + 1))) {
+                if (next != lane)
+                    moves.incrementAndGet();
+                return lanes[next];
+            }
+        }
+    }
+
+    private void leave(int b) {
+        buckets.getAndDecrement(b);
+    }
+
+    /**
+     * Returns the least loaded lane if the given lane is more than
+     * half full and has at least twice its load, else the given lane.
+     */
+    private int rebalanceTarget(int lane) {
+        Mailbox m = lanes[lane].mailbox;
+        int size = m.size();
+        if (size <= m.capacity >>> 1)
+            return lane;
+        int best = lane;
+        int bestSize = size;
+        for (int i = 0; i < lanes.length; i++) {
+            int s = lanes[i].mailbox.size();
+            if (s < bestSize) {
+                best = i;
+                bestSize = s;
+            }
+        }
+        return (bestSize <= size >>> 1) ? best : lane;
+    }
+
+    /**
+     * A submitted task and its bucket.
+     */
+    private static final class Item {
+        final Runnable task;
+        final int bucket;
+
+        Item(Runnable task, int bucket) {
+            this.task = task;
+            this.bucket = bucket;
+        }
+    }
+
+    /**
+     * A bounded mailbox that knows its capacity.
+     */
+    private static final class Mailbox extends ArrayBlockingQueue<Item> {
+        private static final long serialVersionUID = 1L;
+        final int capacity;
+
+        Mailbox(int capacity) {
+            super(capacity);
+            this.capacity = capacity;
+        }
+    }
+
+    /**
+     * A mailbox and the pool task that drains it. At most one drain
+     * of a lane is scheduled or running at a time.
+     */
+    private final class Lane implements Runnable {
+        final Mailbox mailbox;
+
+        /**
+         * 1 while a drain is scheduled or running, else 0.
+         */
+        final AtomicInteger scheduled = new AtomicInteger();
+
+        Lane(int capacity) {
+            mailbox = new Mailbox(capacity);
+        }
+
+        /**
+         * Makes sure a drain will see the item just added. If the pool
+         * cannot take the lane, the calling thread drains it while the
+         * pool is running; if the pool has been shut down since the
+         * item was accepted, the item is refused, but any items other
+         * threads added meanwhile, counting on this drain, are still
+         * run or dropped as the pool's state demands.
+         */
+        void schedule(Item item) {
+            if (scheduled.get() != 0 || !scheduled.compareAndSet(0, 1) ||
+                    pool.tryExecute(this))
+                return;
+            if (pool.isRunningOrShutdown(false)) {
+                rethrow(drain());
+                return;
+            }
+            boolean refused = mailbox.remove(item);
+            if (refused)
+                leave(item.bucket);
+            Throwable failure = drain();
+            if (refused) {
+                RejectedExecutionException ex = rejected(item.task);
+                if (failure != null)
+                    ex.addSuppressed(failure);
+                throw ex;
+            }
+            rethrow(failure);
+        }
+
+        /**
+         * Drains the lane on a worker, rethrowing a task's exception
+         * once the lane is done here.
+         */
+        public void run() {
+            rethrow(drain());
+        }
+
+        /**
+         * Runs batches until the lane is empty or handed back to the
+         * pool, which happens after a full batch or a failed task if
+         * items remain. Whenever the pool cannot take the lane, runs
+         * the next batch here instead, without nesting; once the pool
+         * is stopped, drops the remaining items. Returns the first
+         * exception a task threw, with any later ones suppressed.
+         */
+        private Throwable drain() {
+            Throwable failure = null;
+            for (; ; ) {
+                if (!pool.isRunningOrShutdown(true)) {
+                    do {
+                        abandon();
+                        scheduled.set(0);
+                    } while (mailbox.peek() != null &&
+                            scheduled.compareAndSet(0, 1));
+                    break;
+                }
+                try {
+                    runBatch();
+                } catch (RuntimeException | Error ex) {
+                    if (failure == null)
+                        failure = ex;
+                    else
+                        failure.addSuppressed(ex);
+                }
+                scheduled.set(0);
+                if (mailbox.peek() == null || !scheduled.compareAndSet(0, 1) ||
+                        pool.tryExecute(this))
+                    break;
+            }
+            return failure;
+        }
+
+        private void runBatch() {
+            for (int i = 0; i < BATCH; i++) {
+                Item item = mailbox.poll();
+                if (item == null)
+                    break;
+                try {
+                    item.task.run();
+                } finally {
+                    leave(item.bucket);
+                }
+            }
+        }
+
+        /**
+         * Drops the items in the mailbox, cancelling those that are
+         * futures.
+         */
+        private void abandon() {
+            Item item;
+            while ((item = mailbox.poll()) != null) {
+                leave(item.bucket);
+                if (item.task instanceof Future)
+                    ((Future<?>) item.task).cancel(false);
+            }
+        }
+    }
+}
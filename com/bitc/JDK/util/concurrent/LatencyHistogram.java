@@ -0,0 +1,121 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free log-linear histogram of nanosecond durations, used by
+ * {@link ThreadPoolExecutor} to track task latencies.
+ *
+ * <p>Values below 4 get their own bucket; above that each power of
+ * two is split into 4 equal sub-buckets, so any reported percentile
+ * is within 25% of the true value. Recording is a single atomic
+ * increment and never allocates. Percentiles are computed from a
+ * racy read of the counts, which is fine for monitoring: a reading
+ * may miss values recorded concurrently, but never invents any.
+ *
+ * 注：桶的下标计算方式类似HdrHistogram，只是精度固定为2个二进制位
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of sub-buckets per power of two, as a shift.
+     */
+    private static final int SUB_BITS = 2;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    /**
+     * Enough buckets to cover every non-negative long.
+     */
+    private static final int BUCKETS = (Long.SIZE - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Maps a value to its bucket.
+     */
+    static int indexOf(long v) {
+        if (v < SUB_COUNT)
+            return (v < 0) ? 0 : (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        return (e - SUB_BITS + 1) * SUB_COUNT +
+                (int) ((v >>> (e - SUB_BITS)) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * Returns the largest value that maps to the given bucket.
+     */
+    static long highestValueOf(int index) {
+        if (index < SUB_COUNT)
+            return index;
+        int e = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long lowest = (SUB_COUNT + sub) << (e - SUB_BITS);
+        long width = 1L << (e - SUB_BITS);
+        return (lowest + width - 1 < 0) ? Long.MAX_VALUE : lowest + width - 1;
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos the duration
+     */
+    void record(long nanos) {
+        counts.getAndIncrement(indexOf(nanos));
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     */
+    long count() {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        return n;
+    }
+
+    /**
+     * Returns an upper bound on the given percentile, or 0 if nothing
+     * has been recorded.
+     *
+     * @param percentile between 0 and 100
+     */
+    long percentile(double percentile) {
+        return percentiles(new double[]{percentile})[0];
+    }
+
+    /**
+     * Computes several percentiles from a single read of the counts.
+     *
+     * @param percentiles the percentiles, each between 0 and 100, in
+     *                    ascending order
+     * @return an upper bound on each requested percentile
+     */
+    long[] percentiles(double[] percentiles) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += (snapshot[i] = counts.get(i));
+        long[] result = new long[percentiles.length];
+        if (total == 0)
+            return result;
+        int i = 0;
+        long seen = 0;
+        for (int p = 0; p < percentiles.length; p++) {
+            long rank = (long) Math.ceil(percentiles[p] / 100.0 * total);
+            if (rank < 1)
+                rank = 1;
+            while (i < BUCKETS - 1 && seen + snapshot[i] < rank)
+                seen += snapshot[i++];
+            result[p] = highestValueOf(i);
+        }
+        return result;
+    }
+
+    /**
+     * Discards all recorded durations.
+     */
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0L);
+    }
+}
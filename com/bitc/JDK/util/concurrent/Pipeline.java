@@ -0,0 +1,528 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * A staged pipeline: a chain of {@link ThreadPoolExecutor}s, one per
+ * stage, each applying a function to the items handed to it and
+ * passing the result to the next. A stage whose function returns null
+ * drops the item.
+ *
+ * <pre> {@code
+ * Pipeline<byte[]> pipeline = Pipeline.<byte[]>builder()
+ *     .stage("decode", bytes -> decode(bytes), 2, 1024)
+ *     .stage("enrich", msg -> enrich(msg), 4, 1024)
+ *     .stage("persist", msg -> { store.save(msg); return null; }, 2, 256)
+ *     .build();
+ * pipeline.startBalancing(1, TimeUnit.SECONDS);
+ * for (byte[] b : input)
+ *   pipeline.submit(b);
+ * pipeline.shutdown();}</pre>
+ *
+ * <dl>
+ * <dt>Backpressure</dt>
+ *
+ * <dd>Each stage holds at most its queue capacity of items waiting for
+ * a thread. A thread handing an item to a full stage waits for room,
+ * so when a stage falls behind, the stages before it slow to its pace
+ * one after another, back to {@link #submit}, instead of filling
+ * memory. The bound is kept by a semaphore in front of each stage's
+ * pool rather than by a blocking rejection handler, so tasks reach
+ * the pool only through {@code execute} and keep their byte budget,
+ * context and journal handling. </dd>
+ *
+ * <dt>Statistics</dt>
+ *
+ * <dd>{@link #stats} reports, per stage, the thread count, queue depth,
+ * items completed and failed, throughput since the previous call, and
+ * latency percentiles of the stage's tasks, which include any time
+ * spent waiting to hand the result on. </dd>
+ *
+ * <dt>Balancing</dt>
+ *
+ * <dd>The pipeline's threads can be moved toward its bottleneck, by
+ * calling {@link #rebalance} or periodically after
+ * {@link #startBalancing}. Because full queues propagate upstream,
+ * the bottleneck is the furthest downstream stage whose queue is at
+ * least half full; it gains one thread per step from the stage with
+ * the emptiest queue that has more than one thread. The total number
+ * of threads stays the same. </dd>
+ * </dl>
+ *
+ * <p>A stage's function that throws drops the item and counts it as
+ * failed; the exception goes to the stage pool's
+ * {@code afterExecute} and the worker thread's uncaught exception
+ * handler, and the worker is kept (see
+ * {@link ThreadPoolExecutor#setKeepWorkersOnTaskFailure}).
+ *
+ * @param <I> the type of items submitted to the first stage
+ */
+public class Pipeline<I> {
+
+    /**
+     * Queue fill ratio at or above which a stage counts as a
+     * bottleneck.
+     */
+    private static final double BOTTLENECK_FILL = 0.5;
+
+    private final Stage[] stages;
+    private volatile Thread balancer;
+
+    private Pipeline(Stage[] stages) {
+        this.stages = stages;
+    }
+
+    /**
+     * Returns a builder for a pipeline taking items of the given
+     * type.
+     *
+     * @param <I> the type of items submitted to the first stage
+     * @return the builder
+     */
+    public static <I> Builder<I, I> builder() {
+        return new Builder<I, I>();
+    }
+
+    /**
+     * Builds a {@link Pipeline} one stage at a time.
+     *
+     * @param <I> the type of items submitted to the first stage
+     * @param <O> the type of items produced by the last stage so far
+     */
+    public static final class Builder<I, O> {
+        private final List<Stage> stages = new ArrayList<Stage>();
+
+        private Builder() {
+        }
+
+        /**
+         * Appends a stage.
+         *
+         * @param name          the stage name, used for its threads and
+         *                      statistics
+         * @param function      the function applied to each item
+         * @param threads       the initial number of threads
+         * @param queueCapacity the most items waiting for a thread
+         * @param <R>           the type of items the stage produces
+         * @return this builder
+         * @throws IllegalArgumentException if threads or queueCapacity
+         *                                  is not positive
+         * @throws NullPointerException     if name or function is null
+         */
+        @SuppressWarnings("unchecked")
+        public <R> Builder<I, R> stage(String name,
+                                       Function<? super O, ? extends R> function,
+                                       int threads, int queueCapacity) {
+            if (name == null || function == null)
+                throw new NullPointerException();
+            if (threads <= 0 || queueCapacity <= 0)
+                throw new IllegalArgumentException();
+            stages.add(new Stage(name, (Function<Object, Object>) function,
+                    threads, queueCapacity));
+            return (Builder<I, R>) this;
+        }
+
+        /**
+         * Starts the stages' pools and returns the pipeline. The
+         * results of the last stage are discarded.
+         *
+         * @return the pipeline
+         * @throws IllegalStateException if no stage was added, or the
+         *                               builder was already built
+         */
+        public Pipeline<I> build() {
+            if (stages.isEmpty())
+                throw new IllegalStateException("no stages");
+            Stage[] a = stages.toArray(new Stage[0]);
+            stages.clear();
+            for (int i = 0; i < a.length - 1; i++)
+                a[i].next = a[i + 1];
+            for (Stage s : a)
+                s.start();
+            return new Pipeline<I>(a);
+        }
+    }
+
+    /**
+     * Hands an item to the first stage, waiting while its queue is
+     * full.
+     *
+     * @param item the item
+     * @throws InterruptedException       if interrupted while waiting
+     * @throws RejectedExecutionException if the pipeline is shut down
+     * @throws NullPointerException       if item is null
+     */
+    public void submit(I item) throws InterruptedException {
+        if (item == null)
+            throw new NullPointerException();
+        stages[0].accept(item);
+    }
+
+    /**
+     * Returns the number of stages.
+     *
+     * @return the number of stages
+     */
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    /**
+     * Returns the pool running the given stage.
+     *
+     * @param index the stage index, from 0
+     * @return the stage's pool
+     * @throws IndexOutOfBoundsException if there is no such stage
+     */
+    public ThreadPoolExecutor getStagePool(int index) {
+        return stages[index].pool;
+    }
+
+    /**
+     * Returns the statistics of each stage, in pipeline order. The
+     * throughput of each is measured from the previous call.
+     *
+     * @return the statistics
+     */
+    public synchronized List<StageStats> stats() {
+        long now = System.nanoTime();
+        List<StageStats> list = new ArrayList<StageStats>(stages.length);
+        for (Stage s : stages)
+            list.add(s.stats(now));
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Moves one thread to the bottleneck stage, if there is one and
+     * another stage can spare a thread.
+     *
+     * @return {@code true} if a thread was moved
+     */
+    public synchronized boolean rebalance() {
+        int bottleneck = -1;
+        for (int i = stages.length - 1; i >= 0; i--) {
+            if (stages[i].fill() >= BOTTLENECK_FILL) {
+                bottleneck = i;
+                break;
+            }
+        }
+        if (bottleneck < 0)
+            return false;
+        int donor = -1;
+        double donorFill = Double.MAX_VALUE;
+        for (int i = 0; i < stages.length; i++) {
+            Stage s = stages[i];
+            if (i != bottleneck && s.threads() > 1) {
+                double f = s.fill();
+                if (f < donorFill) {
+                    donor = i;
+                    donorFill = f;
+                }
+            }
+        }
+        if (donor < 0)
+            return false;
+        stages[donor].resize(stages[donor].threads() - 1);
+        stages[bottleneck].resize(stages[bottleneck].threads() + 1);
+        return true;
+    }
+
+    /**
+     * Starts a daemon thread that calls {@link #rebalance} at the
+     * given interval. Has no effect if already started.
+     *
+     * @param interval the time between steps
+     * @param unit     the time unit of the interval argument
+     * @throws IllegalArgumentException if interval is not positive
+     */
+    public synchronized void startBalancing(long interval, TimeUnit unit) {
+        if (interval <= 0L)
+            throw new IllegalArgumentException();
+        if (balancer != null)
+            return;
+        final long nanos = unit.toNanos(interval);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                Thread self = Thread.currentThread();
+                while (balancer == self) {
+                    LockSupport.parkNanos(Pipeline.this, nanos);
+                    if (balancer != self || isTerminated())
+                        break;
+                    rebalance();
+                }
+            }
+        }, "Pipeline-balancer");
+        t.setDaemon(true);
+        balancer = t;
+        t.start();
+    }
+
+    /**
+     * Stops periodic balancing. Has no effect if not started.
+     */
+    public synchronized void stopBalancing() {
+        Thread t = balancer;
+        if (t != null) {
+            balancer = null;
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Stops accepting items and shuts the stages down in order, each
+     * once the one before it has terminated, so that every accepted
+     * item passes through the remaining stages. Returns once the last
+     * stage is shut down; use {@link #awaitTermination} to wait for it
+     * to finish.
+     *
+     * @throws InterruptedException if interrupted while waiting for a
+     *                              stage to terminate
+     */
+    public void shutdown() throws InterruptedException {
+        stopBalancing();
+        for (Stage s : stages) {
+            s.pool.shutdown();
+            if (s.next != null)
+                s.pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Waits for the last stage to terminate after {@link #shutdown}.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit    the time unit of the timeout argument
+     * @return {@code true} if all stages terminated
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        return stages[stages.length - 1].pool.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Returns true if all stages have terminated.
+     *
+     * @return {@code true} if terminated
+     */
+    public boolean isTerminated() {
+        for (Stage s : stages)
+            if (!s.pool.isTerminated())
+                return false;
+        return true;
+    }
+
+    /**
+     * Statistics of one stage.
+     */
+    public static final class StageStats {
+        private final String name;
+        private final int threads;
+        private final int queueDepth;
+        private final int queueCapacity;
+        private final long completed;
+        private final long failed;
+        private final double throughput;
+        private final long latencyP50Nanos;
+        private final long latencyP99Nanos;
+
+        StageStats(String name, int threads, int queueDepth, int queueCapacity,
+                   long completed, long failed, double throughput,
+                   long latencyP50Nanos, long latencyP99Nanos) {
+            this.name = name;
+            this.threads = threads;
+            this.queueDepth = queueDepth;
+            this.queueCapacity = queueCapacity;
+            this.completed = completed;
+            this.failed = failed;
+            this.throughput = throughput;
+            this.latencyP50Nanos = latencyP50Nanos;
+            this.latencyP99Nanos = latencyP99Nanos;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getQueueCapacity() {
+            return queueCapacity;
+        }
+
+        /**
+         * Returns the number of items the stage has finished with,
+         * including failed ones.
+         */
+        public long getCompletedCount() {
+            return completed;
+        }
+
+        public long getFailedCount() {
+            return failed;
+        }
+
+        /**
+         * Returns the items completed per second since the previous
+         * statistics were taken.
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        public long getLatencyP50Nanos() {
+            return latencyP50Nanos;
+        }
+
+        public long getLatencyP99Nanos() {
+            return latencyP99Nanos;
+        }
+
+        public String toString() {
+            return name + "[threads = " + threads +
+                    ", queue = " + queueDepth + "/" + queueCapacity +
+                    ", completed = " + completed +
+                    ", failed = " + failed +
+                    ", throughput = " + Math.round(throughput) + "/s" +
+                    ", p50 = " + latencyP50Nanos + "ns" +
+                    ", p99 = " + latencyP99Nanos + "ns]";
+        }
+    }
+
+    /**
+     * A stage: its function, its pool, and the semaphore bounding
+     * the items waiting in the pool's queue.
+     */
+    private static final class Stage {
+        final String name;
+        final Function<Object, Object> function;
+        final int queueCapacity;
+        final int initialThreads;
+        final Semaphore slots;
+        final LongAdder failed = new LongAdder();
+        ThreadPoolExecutor pool;
+        Stage next;
+
+        /*
+         * Throughput window, accessed only under the pipeline's lock.
+         */
+        long lastCompleted;
+        long lastTime;
+
+        Stage(String name, Function<Object, Object> function,
+              int threads, int queueCapacity) {
+            this.name = name;
+            this.function = function;
+            this.queueCapacity = queueCapacity;
+            this.initialThreads = threads;
+            this.slots = new Semaphore(queueCapacity);
+        }
+
+        void start() {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            pool = new ThreadPoolExecutor(initialThreads, initialThreads,
+                    60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueCapacity),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, name + "-" +
+                                    threadNumber.incrementAndGet());
+                        }
+                    });
+            pool.setKeepWorkersOnTaskFailure(true);
+            pool.setLatencyTracking(true);
+            lastTime = System.nanoTime();
+        }
+
+        /**
+         * Waits for room and hands the item to this stage's pool.
+         */
+        void accept(Object item) throws InterruptedException {
+            slots.acquire();
+            try {
+                pool.execute(new Item(this, item));
+            } catch (RuntimeException | Error ex) {
+                slots.release();
+                throw ex;
+            }
+        }
+
+        int threads() {
+            return pool.getMaximumPoolSize();
+        }
+
+        double fill() {
+            return (double) pool.getQueue().size() / queueCapacity;
+        }
+
+        void resize(int threads) {
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+        }
+
+        StageStats stats(long now) {
+            ThreadPoolSnapshot snap = pool.snapshot();
+            long completed = snap.getCompletedTaskCount();
+            long elapsed = now - lastTime;
+            double throughput = (elapsed > 0L)
+                    ? (completed - lastCompleted) * 1e9 / elapsed : 0.0;
+            lastCompleted = completed;
+            lastTime = now;
+            return new StageStats(name, pool.getMaximumPoolSize(),
+                    snap.getQueueSize(), queueCapacity, completed,
+                    failed.sum(), throughput,
+                    snap.getLatencyP50Nanos(), snap.getLatencyP99Nanos());
+        }
+    }
+
+    /**
+     * An item on its way through a stage.
+     */
+    private static final class Item implements Runnable {
+        final Stage stage;
+        final Object value;
+
+        Item(Stage stage, Object value) {
+            this.stage = stage;
+            this.value = value;
+        }
+
+        public void run() {
+            Stage s = stage;
+            s.slots.release();
+            Object result;
+            try {
+                result = s.function.apply(value);
+            } catch (RuntimeException | Error ex) {
+                s.failed.increment();
+                throw ex;
+            }
+            if (result != null && s.next != null) {
+                try {
+                    s.next.accept(result);
+                } catch (InterruptedException ie) {
+                    // shutdownNow: the item is dropped
+                    s.failed.increment();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * A {@link Flow.Processor} that applies a function to each item on the
+ * workers of a {@link ThreadPoolExecutor} and publishes the results to
+ * a single downstream subscriber.
+ *
+ * <p>The processor holds a window of items: it requests that many
+ * from upstream when subscribed, and after that only as items leave
+ * it, so at most a window's worth of items is running, queued in the
+ * pool or waiting for downstream demand at any time, however fast the
+ * upstream publisher is and however slow the downstream subscriber.
+ * A slot is freed when the result of an item is delivered downstream,
+ * or when the function returns null, which drops the item. Freed slots
+ * are requested from upstream in batches, one {@code request} call per
+ * {@code batch} slots, instead of one per item.
+ *
+ * <p>Results are published in the order the function finishes, which
+ * differs from the upstream order when the pool runs items
+ * concurrently. All signals to the downstream subscriber are issued
+ * serially by whichever thread finds work to do, through a single
+ * drain loop guarded by a work-in-progress counter, so the subscriber
+ * sees them one at a time from possibly different threads.
+ *
+ * <p>If the function throws or the pool rejects an item, upstream is
+ * cancelled and the downstream subscriber is sent {@code onError}
+ * without the results still waiting for demand; the same happens when
+ * upstream signals {@code onError}. {@code onComplete} is sent once
+ * upstream has completed and every accepted item has been delivered
+ * or dropped. Only one downstream subscriber is accepted; others are
+ * sent {@code onError} with an {@link IllegalStateException}.
+ *
+ * @param <T> the subscribed item type
+ * @param <R> the published item type
+ */
+public class PoolProcessor<T, R> implements Flow.Processor<T, R> {
+
+    private final ThreadPoolExecutor pool;
+    private final Function<? super T, ? extends R> function;
+    private final int window;
+    private final int batch;
+
+    private final AtomicReference<Flow.Subscription> upstream =
+            new AtomicReference<Flow.Subscription>();
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * The downstream subscriber, set after its onSubscribe returns.
+     */
+    private volatile Flow.Subscriber<? super R> downstream;
+
+    /**
+     * Results waiting for downstream demand.
+     */
+    private final ConcurrentLinkedQueue<R> results = new ConcurrentLinkedQueue<R>();
+
+    /**
+     * Unfulfilled downstream demand; Long.MAX_VALUE means unbounded.
+     */
+    private final AtomicLong requested = new AtomicLong();
+
+    /**
+     * Items handed to the pool whose function has not finished.
+     */
+    private final AtomicInteger active = new AtomicInteger();
+
+    /**
+     * Items dropped by the function, not yet counted by drain.
+     */
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    /**
+     * Work-in-progress count; the thread that raises it from zero
+     * runs the drain loop.
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile boolean upstreamDone;
+    private volatile boolean cancelled;
+    private final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+    /*
+     * Accessed only by the thread running drain.
+     */
+    private int freed;
+    private boolean terminated;
+
+    /**
+     * Creates a processor with a window of
+     * {@link Flow#defaultBufferSize} items, requested from upstream in
+     * batches of a quarter of that.
+     *
+     * @param pool     the pool to run the function on
+     * @param function the function applied to each item
+     * @throws NullPointerException if pool or function is null
+     */
+    public PoolProcessor(ThreadPoolExecutor pool,
+                         Function<? super T, ? extends R> function) {
+        this(pool, function, Flow.defaultBufferSize(),
+                Math.max(1, Flow.defaultBufferSize() / 4));
+    }
+
+    /**
+     * Creates a processor.
+     *
+     * @param pool     the pool to run the function on
+     * @param function the function applied to each item
+     * @param window   the most items held at once
+     * @param batch    the number of freed slots requested from
+     *                 upstream at a time
+     * @throws IllegalArgumentException if window is not positive, or
+     *                                  batch is not between 1 and window
+     * @throws NullPointerException     if pool or function is null
+     */
+    public PoolProcessor(ThreadPoolExecutor pool,
+                         Function<? super T, ? extends R> function,
+                         int window, int batch) {
+        if (pool == null || function == null)
+            throw new NullPointerException();
+        if (window <= 0 || batch <= 0 || batch > window)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.function = function;
+        this.window = window;
+        this.batch = batch;
+    }
+
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null)
+            throw new NullPointerException();
+        if (!upstream.compareAndSet(null, subscription) || cancelled) {
+            subscription.cancel();
+            return;
+        }
+        subscription.request(window);
+    }
+
+    public void onNext(T item) {
+        if (item == null)
+            throw new NullPointerException();
+        if (cancelled || error.get() != null)
+            return;
+        active.incrementAndGet();
+        try {
+            pool.execute(new Apply(item));
+        } catch (RejectedExecutionException ex) {
+            active.decrementAndGet();
+            fail(ex);
+        }
+    }
+
+    public void onError(Throwable throwable) {
+        if (throwable == null)
+            throw new NullPointerException();
+        upstreamDone = true;
+        error.compareAndSet(null, throwable);
+        drain();
+    }
+
+    public void onComplete() {
+        upstreamDone = true;
+        drain();
+    }
+
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException(
+                    "PoolProcessor allows only one subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Downstream());
+        downstream = subscriber;
+        drain();
+    }
+
+    /**
+     * Returns the number of items handed to the pool whose function
+     * has not finished.
+     *
+     * @return the number of active items
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Returns the number of results waiting for downstream demand.
+     *
+     * @return the number of buffered results
+     */
+    public int getBufferedCount() {
+        return results.size();
+    }
+
+    /**
+     * Records the first failure, cancels upstream and lets drain
+     * deliver the error.
+     */
+    private void fail(Throwable ex) {
+        error.compareAndSet(null, ex);
+        cancelUpstream();
+        drain();
+    }
+
+    private void cancelUpstream() {
+        Flow.Subscription s = upstream.get();
+        if (s != null)
+            s.cancel();
+    }
+
+    /**
+     * Delivers results and terminal signals downstream and requests
+     * freed slots from upstream. Runs in one thread at a time; a call
+     * made while another thread is draining makes that thread loop
+     * once more instead.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0)
+            return;
+        int missed = 1;
+        for (; ; ) {
+            Flow.Subscriber<? super R> d = downstream;
+            if (cancelled || terminated) {
+                results.clear();
+            } else if (d != null) {
+                Throwable ex = error.get();
+                if (ex != null) {
+                    terminated = true;
+                    results.clear();
+                    d.onError(ex);
+                } else {
+                    long r = requested.get();
+                    long e = 0L;
+                    R v;
+                    while (e != r && !cancelled && (v = results.poll()) != null) {
+                        d.onNext(v);
+                        ++e;
+                    }
+                    freed += (int) e;
+                    if (e != 0L && r != Long.MAX_VALUE)
+                        requested.addAndGet(-e);
+                    // active is read before results so that a result
+                    // offered just before its item left active is seen
+                    if (upstreamDone && !cancelled && active.get() == 0 &&
+                            results.isEmpty()) {
+                        terminated = true;
+                        d.onComplete();
+                    }
+                }
+            }
+            freed += dropped.getAndSet(0);
+            if (freed >= batch && !upstreamDone && !cancelled &&
+                    error.get() == null) {
+                Flow.Subscription s = upstream.get();
+                if (s != null) {
+                    int n = freed;
+                    freed = 0;
+                    s.request(n);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0)
+                break;
+        }
+    }
+
+    /**
+     * Applies the function to one item on a pool worker.
+     */
+    private final class Apply implements Runnable {
+        private final T item;
+
+        Apply(T item) {
+            this.item = item;
+        }
+
+        public void run() {
+            R r;
+            try {
+                r = function.apply(item);
+            } catch (Throwable ex) {
+                active.decrementAndGet();
+                fail(ex);
+                return;
+            }
+            if (r != null)
+                results.offer(r);
+            else
+                dropped.incrementAndGet();
+            active.decrementAndGet();
+            drain();
+        }
+    }
+
+    /**
+     * The subscription given to the downstream subscriber.
+     */
+    private final class Downstream implements Flow.Subscription {
+        public void request(long n) {
+            if (n <= 0L) {
+                fail(new IllegalArgumentException(
+                        "non-positive subscription request: " + n));
+                return;
+            }
+            for (; ; ) {
+                long r = requested.get();
+                long u = r + n;
+                if (u < 0L)
+                    u = Long.MAX_VALUE;
+                if (r == Long.MAX_VALUE || requested.compareAndSet(r, u))
+                    break;
+            }
+            drain();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            cancelUpstream();
+            drain();
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * An executor made of one {@link ThreadPoolExecutor} shard per CPU
+ * domain, such as a socket or NUMA node, so that a task usually runs
+ * on a worker of the domain that submitted it and the data it touches
+ * stays in that domain's caches, instead of every worker of one large
+ * pool taking tasks from one shared queue.
+ *
+ * <pre> {@code
+ * ShardedExecutor executor = new ShardedExecutor(2, 16, 10000,
+ *     1, TimeUnit.MILLISECONDS);
+ * executor.setHomeDomain(0); // in a thread known to run on socket 0
+ * executor.execute(task);}</pre>
+ *
+ * <dl>
+ * <dt>Home domain</dt>
+ *
+ * <dd>A task is submitted to the shard of the calling thread's home
+ * domain. Workers of a shard have it as their home, so tasks that
+ * submit further tasks keep them in their domain; other threads may
+ * bind themselves with {@link #setHomeDomain}, and are otherwise
+ * spread over the domains by thread id. Java cannot place threads on
+ * CPUs itself: a thread factory for each domain may be given, which
+ * starts threads that bind themselves, for example through a native
+ * affinity library. </dd>
+ *
+ * <dt>Stealing</dt>
+ *
+ * <dd>A worker whose shard has had no task for it for the steal
+ * threshold takes one from the shard with the longest queue, so that
+ * a burst on one domain is spread over idle domains without moving
+ * tasks while their own domain keeps up. A worker that finds nothing
+ * to steal waits twice as long before looking again, up to 64 times
+ * the threshold, so idle shards cost little. Paused shards are not
+ * stolen from, though a task taken just as its shard is paused still
+ * runs. The byte budget charge of a stolen {@link SizedTask} moves
+ * with it: the victim's budget is credited when it is taken, and the
+ * thief's charged, whether or not it fits, since the task was already
+ * accepted. </dd>
+ *
+ * <dt>Rejection</dt>
+ *
+ * <dd>When the home shard is saturated, the task goes to the first
+ * other shard with room. Only if every shard refuses it, or the
+ * executor is shut down, is it passed to the executor's
+ * {@link RejectedExecutionHandler}, with the home shard as the
+ * executor argument. </dd>
+ *
+ * <dt>Lifecycle and statistics</dt>
+ *
+ * <dd>Shutdown, termination and statistics cover all shards, which are
+ * available individually through {@link #getShard} for the pool's own
+ * statistics and tuning. Shards should not be shut down
+ * individually. </dd>
+ * </dl>
+ */
+public class ShardedExecutor extends AbstractExecutorService {
+
+    /**
+     * Bounds the backoff of an idle worker that finds nothing to
+     * steal, as a power of two times the steal threshold.
+     */
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    /**
+     * Thrown by the shards' handler so that execute can try the next
+     * shard; never seen by callers, so it is shared, and has no stack
+     * trace.
+     */
+    private static final RejectedExecutionException SHARD_FULL = new ShardFull();
+
+    private static final RejectedExecutionHandler NEXT_SHARD =
+            new RejectedExecutionHandler() {
+                public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                    throw SHARD_FULL;
+                }
+            };
+
+    private final ThreadPoolExecutor[] shards;
+    private final StealingQueue[] queues;
+    private final long stealNanos;
+    private final RejectedExecutionHandler handler;
+    private final ThreadLocal<Integer> homeDomain = new ThreadLocal<Integer>();
+    private volatile boolean shutdown;
+
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates an executor with default thread factories, naming
+     * threads after their domain, and the
+     * {@link ThreadPoolExecutor.AbortPolicy}.
+     *
+     * @param domains          the number of domains
+     * @param threadsPerDomain the number of workers per domain
+     * @param queueCapacity    the most tasks queued per domain
+     * @param stealAfter       how long a worker waits for a task of its
+     *                         own domain before stealing
+     * @param unit             the time unit of stealAfter
+     * @throws IllegalArgumentException if domains, threadsPerDomain,
+     *                                  queueCapacity or stealAfter is
+     *                                  not positive
+     * @throws NullPointerException     if unit is null
+     */
+    public ShardedExecutor(int domains, int threadsPerDomain, int queueCapacity,
+                           long stealAfter, TimeUnit unit) {
+        this(domains, threadsPerDomain, queueCapacity, stealAfter, unit,
+                new IntFunction<ThreadFactory>() {
+                    public ThreadFactory apply(final int domain) {
+                        final AtomicInteger threadNumber = new AtomicInteger();
+                        return new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                return new Thread(r, "domain-" + domain + "-" +
+                                        threadNumber.incrementAndGet());
+                            }
+                        };
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Creates an executor and starts the workers of every domain.
+     *
+     * @param domains          the number of domains
+     * @param threadsPerDomain the number of workers per domain
+     * @param queueCapacity    the most tasks queued per domain
+     * @param stealAfter       how long a worker waits for a task of its
+     *                         own domain before stealing
+     * @param unit             the time unit of stealAfter
+     * @param threadFactories  gives the thread factory of each domain,
+     *                         by domain number
+     * @param handler          the handler for tasks no shard accepts
+     * @throws IllegalArgumentException if domains, threadsPerDomain,
+     *                                  queueCapacity or stealAfter is
+     *                                  not positive
+     * @throws NullPointerException     if unit, threadFactories, a
+     *                                  factory it returns, or handler is
+     *                                  null
+     */
+    public ShardedExecutor(int domains, int threadsPerDomain, int queueCapacity,
+                           long stealAfter, TimeUnit unit,
+                           IntFunction<ThreadFactory> threadFactories,
+                           RejectedExecutionHandler handler) {
+        if (unit == null || threadFactories == null || handler == null)
+            throw new NullPointerException();
+        if (domains <= 0 || threadsPerDomain <= 0 || queueCapacity <= 0 ||
+                stealAfter <= 0L)
+            throw new IllegalArgumentException();
+        this.stealNanos = unit.toNanos(stealAfter);
+        this.handler = handler;
+        this.queues = new StealingQueue[domains];
+        this.shards = new ThreadPoolExecutor[domains];
+        for (int d = 0; d < domains; d++) {
+            ThreadFactory factory = threadFactories.apply(d);
+            if (factory == null)
+                throw new NullPointerException();
+            queues[d] = new StealingQueue(d, queueCapacity);
+            shards[d] = new ThreadPoolExecutor(threadsPerDomain, threadsPerDomain,
+                    0L, TimeUnit.MILLISECONDS, queues[d],
+                    new HomeThreadFactory(d, factory), NEXT_SHARD);
+        }
+        // Started only once every queue can find its peers
+        for (ThreadPoolExecutor shard : shards)
+            shard.prestartAllCoreThreads();
+    }
+
+    /**
+     * Runs the task on the shard of the calling thread's home domain,
+     * or on another shard if that one is saturated.
+     *
+     * @param task the task
+     * @throws RejectedExecutionException at the discretion of the
+     *                                    handler, if no shard accepts
+     *                                    the task
+     * @throws NullPointerException       if task is null
+     */
+    public void execute(Runnable task) {
+        if (task == null)
+            throw new NullPointerException();
+        int home = getHomeDomain();
+        if (tryExecute(home, task))
+            return;
+        if (!shutdown) {
+            int n = shards.length;
+            for (int i = 1; i < n; i++) {
+                if (tryExecute((home + i) % n, task)) {
+                    overflows.increment();
+                    return;
+                }
+            }
+        }
+        rejected.increment();
+        handler.rejectedExecution(task, shards[home]);
+    }
+
+    private boolean tryExecute(int domain, Runnable task) {
+        try {
+            shards[domain].execute(task);
+            return true;
+        } catch (RejectedExecutionException ex) {
+            if (ex != SHARD_FULL)
+                throw ex;
+            return false;
+        }
+    }
+
+    /**
+     * Makes the given domain the home of the calling thread, so the
+     * tasks it submits go to that domain's shard.
+     *
+     * @param domain the domain number
+     * @throws IllegalArgumentException if there is no such domain
+     */
+    public void setHomeDomain(int domain) {
+        if (domain < 0 || domain >= shards.length)
+            throw new IllegalArgumentException();
+        homeDomain.set(domain);
+    }
+
+    /**
+     * Returns the home domain of the calling thread: its own domain
+     * for a worker, the domain it was bound to by
+     * {@link #setHomeDomain}, or one chosen by its thread id.
+     *
+     * @return the domain number
+     */
+    public int getHomeDomain() {
+        Integer d = homeDomain.get();
+        if (d != null)
+            return d;
+        return (int) ((Thread.currentThread().getId() & Long.MAX_VALUE) % shards.length);
+    }
+
+    /**
+     * Returns the number of domains.
+     *
+     * @return the number of domains
+     */
+    public int getDomainCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the shard of the given domain.
+     *
+     * @param domain the domain number
+     * @return the shard
+     * @throws IndexOutOfBoundsException if there is no such domain
+     */
+    public ThreadPoolExecutor getShard(int domain) {
+        if (domain < 0 || domain >= shards.length)
+            throw new IndexOutOfBoundsException(String.valueOf(domain));
+        return shards[domain];
+    }
+
+    /**
+     * Returns a snapshot of each shard's statistics, by domain number.
+     *
+     * @return the snapshots
+     */
+    public List<ThreadPoolSnapshot> snapshots() {
+        List<ThreadPoolSnapshot> list = new ArrayList<ThreadPoolSnapshot>(shards.length);
+        for (ThreadPoolExecutor shard : shards)
+            list.add(shard.snapshot());
+        return list;
+    }
+
+    /**
+     * Returns the number of tasks workers of the given domain have
+     * taken from other domains.
+     *
+     * @param domain the domain number
+     * @return the number of tasks stolen by the domain
+     * @throws IndexOutOfBoundsException if there is no such domain
+     */
+    public long getStealCount(int domain) {
+        if (domain < 0 || domain >= shards.length)
+            throw new IndexOutOfBoundsException(String.valueOf(domain));
+        return queues[domain].steals.sum();
+    }
+
+    /**
+     * Returns the number of tasks taken from one domain by workers of
+     * another.
+     *
+     * @return the number of tasks stolen
+     */
+    public long getStealCount() {
+        long n = 0L;
+        for (StealingQueue q : queues)
+            n += q.steals.sum();
+        return n;
+    }
+
+    /**
+     * Returns the number of tasks submitted to another shard because
+     * the home shard was saturated.
+     *
+     * @return the number of overflowed tasks
+     */
+    public long getOverflowCount() {
+        return overflows.sum();
+    }
+
+    /**
+     * Returns the number of tasks passed to the handler.
+     *
+     * @return the number of rejected tasks
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Returns the number of workers running a task, over all shards.
+     *
+     * @return the number of active workers
+     */
+    public int getActiveCount() {
+        int n = 0;
+        for (ThreadPoolExecutor shard : shards)
+            n += shard.getActiveCount();
+        return n;
+    }
+
+    /**
+     * Returns the number of tasks queued, over all shards.
+     *
+     * @return the number of queued tasks
+     */
+    public int getQueueSize() {
+        int n = 0;
+        for (StealingQueue q : queues)
+            n += q.size();
+        return n;
+    }
+
+    /**
+     * Returns the number of tasks completed, over all shards.
+     *
+     * @return the number of completed tasks
+     */
+    public long getCompletedTaskCount() {
+        long n = 0L;
+        for (ThreadPoolExecutor shard : shards)
+            n += shard.getCompletedTaskCount();
+        return n;
+    }
+
+    /**
+     * Shuts down every shard. Queued tasks still run, but a shard
+     * whose own queue is empty terminates at once rather than staying
+     * to steal, so each backlog is drained mostly by its own domain.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for (ThreadPoolExecutor shard : shards)
+            shard.shutdown();
+    }
+
+    /**
+     * Stops every shard, returning the tasks queued in all of them.
+     *
+     * @return the tasks that never commenced execution
+     */
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> tasks = new ArrayList<Runnable>();
+        for (ThreadPoolExecutor shard : shards)
+            tasks.addAll(shard.shutdownNow());
+        return tasks;
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        for (ThreadPoolExecutor shard : shards)
+            if (!shard.isTerminated())
+                return false;
+        return true;
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor shard : shards)
+            if (!shard.awaitTermination(deadline - System.nanoTime(),
+                    TimeUnit.NANOSECONDS))
+                return false;
+        return true;
+    }
+
+    public String toString() {
+        return super.toString() + "[" +
+                (isTerminated() ? "Terminated" : shutdown ? "Shutting down" : "Running") +
+                ", domains = " + shards.length +
+                ", active threads = " + getActiveCount() +
+                ", queued tasks = " + getQueueSize() +
+                ", completed tasks = " + getCompletedTaskCount() +
+                ", stolen = " + getStealCount() +
+                ", overflowed = " + overflows.sum() +
+                ", rejected = " + rejected.sum() + "]";
+    }
+
+    /**
+     * Makes each thread of a domain's factory have the domain as its
+     * home.
+     */
+    private final class HomeThreadFactory implements ThreadFactory {
+        private final int domain;
+        private final ThreadFactory factory;
+
+        HomeThreadFactory(int domain, ThreadFactory factory) {
+            this.domain = domain;
+            this.factory = factory;
+        }
+
+        public Thread newThread(final Runnable r) {
+            return factory.newThread(new Runnable() {
+                public void run() {
+                    homeDomain.set(domain);
+                    r.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * The queue of one shard. Its workers wait for tasks of their own
+     * domain, and after waiting the steal threshold with none
+     * arriving take one from the longest queue of another domain.
+     * Only the blocking takes steal; the other operations see the
+     * shard's own tasks alone.
+     */
+    private final class StealingQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        final int domain;
+        final LongAdder steals = new LongAdder();
+
+        StealingQueue(int domain, int capacity) {
+            super(capacity);
+            this.domain = domain;
+        }
+
+        public Runnable take() throws InterruptedException {
+            int backoff = 0;
+            for (; ; ) {
+                Runnable r = super.poll(waitNanos(backoff), TimeUnit.NANOSECONDS);
+                if (r != null || (r = steal()) != null)
+                    return r;
+                if (backoff < MAX_BACKOFF_SHIFT)
+                    ++backoff;
+            }
+        }
+
+        public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            long deadline = System.nanoTime() + nanos;
+            int backoff = 0;
+            for (; ; ) {
+                long wait = waitNanos(backoff);
+                Runnable r = super.poll(Math.min(wait, nanos), TimeUnit.NANOSECONDS);
+                // steal only after waiting the full threshold
+                if (r != null || (nanos >= wait && (r = steal()) != null))
+                    return r;
+                nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    return null;
+                if (backoff < MAX_BACKOFF_SHIFT)
+                    ++backoff;
+            }
+        }
+
+        /**
+         * Returns the steal threshold doubled backoff times, saturating.
+         */
+        private long waitNanos(int backoff) {
+            long wait = stealNanos << backoff;
+            return (wait >>> backoff == stealNanos) ? wait : Long.MAX_VALUE;
+        }
+
+        /**
+         * Takes a task from the unpaused domain with the longest
+         * queue, moving its byte budget charge to this domain. A
+         * victim that is shut down may have lost its last task, which
+         * its own workers would have noticed on taking it, so it is
+         * given the chance to terminate.
+         */
+        private Runnable steal() {
+            StealingQueue victim = null;
+            int most = 0;
+            for (StealingQueue q : queues) {
+                int n;
+                if (q != this && (n = q.size()) > most &&
+                        !shards[q.domain].isPaused()) {
+                    most = n;
+                    victim = q;
+                }
+            }
+            if (victim == null)
+                return null;
+            Runnable r = victim.poll();
+            if (r != null) {
+                steals.increment();
+                ThreadPoolExecutor shard = shards[victim.domain];
+                long bytes = ThreadPoolExecutor.chargeOf(r);
+                if (bytes != 0L) {
+                    // this shard's worker credits it back on completion
+                    shards[domain].chargeBytes(bytes);
+                    shard.releaseBytes(bytes);
+                }
+                if (shard.isShutdown())
+                    shard.tryTerminate();
+            }
+            return r;
+        }
+    }
+
+    /**
+     * The exception behind SHARD_FULL, which does not fill in a stack
+     * trace.
+     */
+    private static final class ShardFull extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        ShardFull() {
+            super("shard full");
+        }
+
+        public Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * An asynchronous loading cache whose loads run on a
+ * {@link ThreadPoolExecutor}, with at most one load per key in flight.
+ *
+ * <pre> {@code
+ * SingleFlightCache<String, Profile> profiles = new SingleFlightCache<String, Profile>(
+ *     pool, id -> backend.fetchProfile(id),
+ *     10000, 10, 8, TimeUnit.MINUTES);
+ * profiles.get(id).thenAccept(this::render);}</pre>
+ *
+ * <dl>
+ * <dt>Single flight</dt>
+ *
+ * <dd>Callers asking for a key that is being loaded are given the
+ * future of the load in progress, so when a popular entry is missing
+ * or has expired, a herd of concurrent callers causes one load rather
+ * than one per caller. The future is shared by all those callers,
+ * who must not complete or cancel it. A failed load is not cached:
+ * its callers see the failure and the next call loads again. A loader
+ * returning null counts as failing with a
+ * {@link NullPointerException}. </dd>
+ *
+ * <dt>Expiry and refresh-ahead</dt>
+ *
+ * <dd>An entry expires {@code expireAfterWrite} after its value was
+ * loaded; the next call for it starts a new load and waits for it.
+ * If {@code refreshAfterWrite} is positive and shorter, the first call
+ * for an entry older than that starts a reload in the background and
+ * is answered at once with the current value, which the reload
+ * replaces when it succeeds. An entry that is read often is therefore
+ * reloaded before it expires, and its callers never wait. A failed
+ * refresh keeps the current value until the next call tries
+ * again. </dd>
+ *
+ * <dt>Size</dt>
+ *
+ * <dd>When more than {@code maximumSize} entries are present, entries
+ * are evicted in approximately least recently used order, by the
+ * CLOCK algorithm: entries sit in a FIFO queue in the order they were
+ * created, and the one at its head is evicted unless it has been read
+ * since it was last there, in which case it goes to the tail instead.
+ * Entries whose load is in flight are never evicted. This needs no
+ * lock and no reordering on reads, which only set a flag. </dd>
+ * </dl>
+ *
+ * @param <K> the type of keys
+ * @param <V> the type of values
+ */
+public class SingleFlightCache<K, V> {
+
+    private final ThreadPoolExecutor pool;
+    private final Function<? super K, ? extends V> loader;
+    private final int maximumSize;
+    private final long expireNanos;
+    private final long refreshNanos;
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map =
+            new ConcurrentHashMap<K, Entry<K, V>>();
+
+    /**
+     * Entries in CLOCK order. May hold entries no longer in the map,
+     * which are dropped when they reach the head.
+     */
+    private final ConcurrentLinkedQueue<Entry<K, V>> clock =
+            new ConcurrentLinkedQueue<Entry<K, V>>();
+    private final AtomicInteger clockSize = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache.
+     *
+     * @param pool              the pool to run loads on
+     * @param loader            computes the value of a key
+     * @param maximumSize       the most entries kept
+     * @param expireAfterWrite  the time after loading at which an entry
+     *                          expires
+     * @param refreshAfterWrite the time after loading at which a read
+     *                          starts a background reload, or 0 for none
+     * @param unit              the time unit of the time arguments
+     * @throws IllegalArgumentException if maximumSize or
+     *                                  expireAfterWrite is not positive,
+     *                                  or refreshAfterWrite is negative
+     * @throws NullPointerException     if pool, loader or unit is null
+     */
+    public SingleFlightCache(ThreadPoolExecutor pool,
+                             Function<? super K, ? extends V> loader,
+                             int maximumSize, long expireAfterWrite,
+                             long refreshAfterWrite, TimeUnit unit) {
+        if (pool == null || loader == null || unit == null)
+            throw new NullPointerException();
+        if (maximumSize <= 0 || expireAfterWrite <= 0L || refreshAfterWrite < 0L)
+            throw new IllegalArgumentException();
+        this.pool = pool;
+        this.loader = loader;
+        this.maximumSize = maximumSize;
+        this.expireNanos = unit.toNanos(expireAfterWrite);
+        this.refreshNanos = unit.toNanos(refreshAfterWrite);
+    }
+
+    /**
+     * Returns a future for the value of the given key, loading it on
+     * the pool if it is not cached or has expired.
+     *
+     * @param key the key
+     * @return the future value, shared with other callers for the key
+     * @throws NullPointerException if key is null
+     */
+    public CompletableFuture<V> get(K key) {
+        if (key == null)
+            throw new NullPointerException();
+        for (; ; ) {
+            Entry<K, V> e = map.get(key);
+            if (e == null) {
+                Entry<K, V> n = new Entry<K, V>(key);
+                e = map.putIfAbsent(key, n);
+                if (e == null) {
+                    misses.increment();
+                    clock.offer(n);
+                    clockSize.incrementAndGet();
+                    Load<V> l = n.load;
+                    load(n, l);
+                    evictIfNeeded();
+                    return l.future;
+                }
+            }
+            e.accessed = true;
+            Load<V> l = e.load;
+            if (!l.future.isDone()) {
+                hits.increment();
+                return l.future;
+            }
+            if (l.future.isCompletedExceptionally()) {
+                // being removed by the failed load
+                map.remove(key, e);
+                continue;
+            }
+            long age = System.nanoTime() - l.loadedAt;
+            if (age >= expireNanos) {
+                Load<V> fresh = new Load<V>();
+                if (e.casLoad(l, fresh)) {
+                    misses.increment();
+                    load(e, fresh);
+                    return fresh.future;
+                }
+                continue;
+            }
+            hits.increment();
+            if (refreshNanos > 0L && age >= refreshNanos &&
+                    e.refreshing.compareAndSet(false, true))
+                refresh(e, l);
+            return l.future;
+        }
+    }
+
+    /**
+     * Returns the cached value of the given key if it is loaded and
+     * has not expired, without loading it.
+     *
+     * @param key the key
+     * @return the value, or null
+     */
+    public V getIfPresent(K key) {
+        Entry<K, V> e = map.get(key);
+        if (e == null)
+            return null;
+        Load<V> l = e.load;
+        if (!l.future.isDone() || l.future.isCompletedExceptionally() ||
+                System.nanoTime() - l.loadedAt >= expireNanos)
+            return null;
+        e.accessed = true;
+        return l.future.getNow(null);
+    }
+
+    /**
+     * Discards the entry for the given key. A load in flight still
+     * completes the futures already handed out.
+     *
+     * @param key the key
+     */
+    public void invalidate(K key) {
+        map.remove(key);
+    }
+
+    /**
+     * Returns the number of entries, including those being loaded.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the number of calls answered from the cache or by
+     * joining a load in flight.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of calls that started a load.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of background refreshes started.
+     */
+    public long getRefreshCount() {
+        return refreshes.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted for size.
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public String toString() {
+        return super.toString() + "[size = " + map.size() +
+                ", hits = " + hits.sum() +
+                ", misses = " + misses.sum() +
+                ", refreshes = " + refreshes.sum() +
+                ", evictions = " + evictions.sum() + "]";
+    }
+
+    /**
+     * Runs a load on the pool, completing l. A failed load removes
+     * the entry before failing the future, so callers that retry on
+     * seeing the failure start a new load.
+     */
+    private void load(final Entry<K, V> e, final Load<V> l) {
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    V v;
+                    try {
+                        v = loader.apply(e.key);
+                        if (v == null)
+                            throw new NullPointerException("loader returned null for " + e.key);
+                    } catch (Throwable ex) {
+                        map.remove(e.key, e);
+                        l.future.completeExceptionally(ex);
+                        return;
+                    }
+                    l.loadedAt = System.nanoTime();
+                    l.future.complete(v);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            map.remove(e.key, e);
+            l.future.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Reloads an entry in the background, replacing current with the
+     * new value if nothing else has replaced it meanwhile.
+     */
+    private void refresh(final Entry<K, V> e, final Load<V> current) {
+        refreshes.increment();
+        try {
+            pool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        V v = loader.apply(e.key);
+                        if (v != null) {
+                            Load<V> n = new Load<V>();
+                            n.loadedAt = System.nanoTime();
+                            n.future.complete(v);
+                            e.casLoad(current, n);
+                        }
+                    } catch (Throwable ignore) {
+                        // keep the current value until it expires
+                    } finally {
+                        e.refreshing.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            e.refreshing.set(false);
+        }
+    }
+
+    /**
+     * Evicts entries while there are too many, and drops entries no
+     * longer in the map from the clock queue once it has grown to
+     * twice the maximum size. Only one thread evicts at a time; others
+     * return at once.
+     */
+    private void evictIfNeeded() {
+        if ((map.size() <= maximumSize && clockSize.get() <= 2 * maximumSize) ||
+                !evicting.compareAndSet(false, true))
+            return;
+        try {
+            // Visit each entry at most twice, once to clear its flag
+            // and once to evict it; entries in flight only go round
+            int budget = 2 * clockSize.get() + 1;
+            while (budget-- > 0 &&
+                    (map.size() > maximumSize || clockSize.get() > 2 * maximumSize)) {
+                Entry<K, V> e = clock.poll();
+                if (e == null)
+                    break;
+                clockSize.decrementAndGet();
+                if (map.get(e.key) != e)
+                    continue;
+                if (map.size() > maximumSize && !e.accessed &&
+                        e.load.future.isDone()) {
+                    if (map.remove(e.key, e))
+                        evictions.increment();
+                } else {
+                    if (map.size() > maximumSize)
+                        e.accessed = false;
+                    clock.offer(e);
+                    clockSize.incrementAndGet();
+                }
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * A cached key. Its load is replaced by compare-and-set, so that
+     * of the callers finding it expired, one starts the new load and
+     * the others join it.
+     */
+    private static final class Entry<K, V> {
+        final K key;
+        volatile Load<V> load = new Load<V>();
+        volatile boolean accessed;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        Entry(K key) {
+            this.key = key;
+        }
+
+        boolean casLoad(Load<V> expect, Load<V> update) {
+            return LOAD.compareAndSet(this, expect, update);
+        }
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Entry, Load> LOAD =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class, Load.class, "load");
+    }
+
+    /**
+     * One load of a key's value.
+     */
+    private static final class Load<V> {
+        final CompletableFuture<V> future = new CompletableFuture<V>();
+        /**
+         * When the value was loaded; written before the future is
+         * completed.
+         */
+        volatile long loadedAt;
+    }
+}
@@ -0,0 +1,31 @@
+package com.bitc.JDK.util.concurrent;
+
+/**
+ * A task that declares an estimate of the memory it retains while it
+ * is queued or running, for use with the byte budget of a
+ * {@link ThreadPoolExecutor} (see
+ * {@link ThreadPoolExecutor#setByteBudget}).
+ *
+ * <p>Implemented by the {@code Runnable} passed to {@code execute}, or
+ * by the {@code Runnable} or {@code Callable} passed to {@code submit}.
+ * Tasks that do not implement this interface count as zero bytes.
+ *
+ * <pre> {@code
+ * class ImportTask implements Runnable, SizedTask {
+ *   private final byte[] payload;
+ *   public long estimatedBytes() { return payload.length; }
+ *   public void run() { ... }
+ * }}</pre>
+ */
+public interface SizedTask {
+
+    /**
+     * Returns the estimated number of bytes this task retains until it
+     * completes. The pool asks once, when the task is submitted, and
+     * credits back the amount it charged then when the task completes
+     * or leaves the queue. Negative values are treated as zero.
+     *
+     * @return the estimated size in bytes
+     */
+    long estimatedBytes();
+}
@@ -0,0 +1,520 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead log of the {@link Serializable} tasks accepted by a
+ * {@link ThreadPoolExecutor}, from which the tasks that had not
+ * completed when the process stopped are run again the next time the
+ * journal is opened (see {@link ThreadPoolExecutor#setJournal}).
+ * Replayed tasks may already have run, in part or in full, so
+ * journaled tasks must be idempotent.
+ *
+ * <p>The log is a file written through memory-mapped segments. Each
+ * record is a header followed by a payload:
+ *
+ * <pre>
+ * int   payload length
+ * long  task sequence number
+ * int   CRC-32 of the length, sequence number, type and payload
+ * byte  type: 0 end of log, 1 enqueue, 2 complete, 3 padding
+ * </pre>
+ *
+ * The type byte is written last, and the unwritten part of the file
+ * is zero, so a reader stops at the first record that was not
+ * completely written; the checksum also stops it at a record whose
+ * pages were only partly written back before a crash, including one
+ * whose header was torn. The checksum of a padding record covers
+ * just its header.
+ *
+ * <p>An enqueue record is forced to storage before {@code execute}
+ * returns. Forcing is batched: a thread that needs its record forced
+ * forces every record appended so far, and threads that arrive while
+ * it does so usually find their records already forced, so that under
+ * load one force serves many submissions. Completion marks are written
+ * by workers after each task and are not forced, as a lost mark only
+ * causes the task to run again.
+ *
+ * <p>Opening a journal rewrites the file to hold just the tasks that
+ * had not completed, so the log does not grow across restarts. While
+ * the journal is open, the file is compacted the same way each time a
+ * segment fills up, if the tasks not yet completed take up at most
+ * half of it, so under a steady load the file stays within about two
+ * segments. For this the journal keeps the serialized form of every
+ * task not yet completed in memory. Compaction replaces the file by
+ * renaming, which requires a file system that can replace a file
+ * that is mapped.
+ */
+public class TaskJournal implements Closeable {
+
+    private static final byte END = 0;
+    private static final byte ENQUEUE = 1;
+    private static final byte COMPLETE = 2;
+    private static final byte PADDING = 3;
+
+    private static final int HEADER = 4 + 8 + 4 + 1;
+
+    /**
+     * The default size of each mapped segment of the file.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    /**
+     * A task read back from the log.
+     */
+    static final class Entry {
+        final long seq;
+        final Runnable task;
+
+        Entry(long seq, Runnable task) {
+            this.seq = seq;
+            this.task = task;
+        }
+    }
+
+    private final Path path;
+    private final int segmentSize;
+    private final List<Entry> recovered;
+
+    /**
+     * Guards appends: the file, the segment, the position within the
+     * file, the sequence numbers and the pending records.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private long segmentBase;
+    private long position;
+    private long lastSeq;
+    private boolean closed;
+    /**
+     * The payloads of the tasks enqueued and not yet completed, in
+     * order, and the space their records take, carried over to the
+     * new file when the log is compacted.
+     */
+    private final Map<Long, byte[]> pending;
+    private long pendingBytes;
+    /**
+     * The number of bytes dropped by compaction. Positions passed to
+     * sync are offset by this, so that they keep increasing across
+     * compactions.
+     */
+    private long compactedBytes;
+
+    /**
+     * Guards forcing. The position, offset by compactedBytes, up to
+     * which all records are known to be on storage.
+     */
+    private final Object syncLock = new Object();
+    private long syncedTo;
+
+    private TaskJournal(Path path, FileChannel channel, int segmentSize,
+                        long position, long lastSeq, List<Entry> recovered,
+                        Map<Long, byte[]> pending)
+            throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.segmentSize = segmentSize;
+        this.position = position;
+        this.syncedTo = position;
+        this.lastSeq = lastSeq;
+        this.recovered = recovered;
+        this.pending = pending;
+        this.pendingBytes = position;
+        mapSegment(position, segmentSize);
+    }
+
+    /**
+     * Opens the journal in the given file with the default segment
+     * size, creating the file if it does not exist.
+     *
+     * @param path the file
+     * @return the journal
+     * @throws IOException if the file cannot be read or written
+     */
+    public static TaskJournal open(Path path) throws IOException {
+        return open(path, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens the journal in the given file, creating the file if it
+     * does not exist. Tasks enqueued and not completed in a previous
+     * run are read back, and the file is rewritten to hold just those.
+     * A task that can no longer be deserialized is dropped.
+     *
+     * @param path        the file
+     * @param segmentSize the size of each mapped segment of the file;
+     *                    a larger task gets a segment of its own
+     * @return the journal
+     * @throws IOException              if the file cannot be read or written
+     * @throws IllegalArgumentException if segmentSize is too small to
+     *                                  hold two record headers
+     */
+    public static TaskJournal open(Path path, int segmentSize) throws IOException {
+        if (segmentSize < 2 * HEADER)
+            throw new IllegalArgumentException();
+        Map<Long, byte[]> pending = new LinkedHashMap<Long, byte[]>();
+        long lastSeq = 0L;
+        if (Files.exists(path)) {
+            try (InputStream in = Files.newInputStream(path)) {
+                lastSeq = scan(new DataInputStream(new BufferedInputStream(in)),
+                        Files.size(path), pending);
+            }
+        }
+
+        List<Entry> recovered = new ArrayList<Entry>();
+        Iterator<Map.Entry<Long, byte[]>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, byte[]> e = it.next();
+            Runnable task = deserialize(e.getValue());
+            if (task == null)
+                it.remove();
+            else
+                recovered.add(new Entry(e.getKey(), task));
+        }
+
+        FileChannel channel = rewrite(path, pending);
+        try {
+            return new TaskJournal(path, channel, segmentSize, channel.size(),
+                    lastSeq, recovered, pending);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Writes the given enqueue records to a new file, forces it, and
+     * replaces the file at the given path with it. Returns the new
+     * file, open for reading and writing, positioned after the
+     * records.
+     */
+    private static FileChannel rewrite(Path path, Map<Long, byte[]> records)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            long size = 0L;
+            for (byte[] payload : records.values())
+                size += HEADER + payload.length;
+            if (size > 0L) {
+                MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+                for (Map.Entry<Long, byte[]> e : records.entrySet())
+                    writeRecord(buf, ENQUEUE, e.getKey(), e.getValue());
+                buf.force();
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            ch.position(size);
+            return ch;
+        } catch (IOException | RuntimeException ex) {
+            ch.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Reads records until the end of the log, collecting the payloads
+     * of the enqueued tasks that have no completion mark, and returns
+     * the highest sequence number seen.
+     */
+    private static long scan(DataInputStream in, long size,
+                             Map<Long, byte[]> pending)
+            throws IOException {
+        long lastSeq = 0L;
+        long read = 0L;
+        try {
+            for (; ; ) {
+                int length = in.readInt();
+                long seq = in.readLong();
+                int checksum = in.readInt();
+                byte type = in.readByte();
+                read += HEADER;
+                // A torn header may claim more than the file holds
+                if (type == END || length < 0 || length > size - read)
+                    break;
+                if (type == PADDING) {
+                    if (checksum(length, seq, type, null) != checksum)
+                        break;
+                    in.skipBytes(length);
+                    read += length;
+                    continue;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                read += length;
+                if (checksum(length, seq, type, payload) != checksum)
+                    break; // torn write
+                lastSeq = Math.max(lastSeq, seq);
+                if (type == ENQUEUE)
+                    pending.put(seq, payload);
+                else if (type == COMPLETE)
+                    pending.remove(seq);
+                else
+                    break;
+            }
+        } catch (EOFException end) {
+            // the log was not closed; what was read is all there is
+        }
+        return lastSeq;
+    }
+
+    private static Runnable deserialize(byte[] payload) {
+        try (ObjectInputStream in =
+                     new ObjectInputStream(new ByteArrayInputStream(payload))) {
+            return (Runnable) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+            return null;
+        }
+    }
+
+    private static byte[] serialize(Runnable task) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(task);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns the checksum of a record: a CRC-32 of the length,
+     * sequence number and type as they appear in the header, followed
+     * by the payload, if any.
+     */
+    private static int checksum(int length, long seq, byte type, byte[] payload) {
+        byte[] header = new byte[13];
+        for (int i = 0; i < 4; i++)
+            header[i] = (byte) (length >>> (24 - 8 * i));
+        for (int i = 0; i < 8; i++)
+            header[4 + i] = (byte) (seq >>> (56 - 8 * i));
+        header[12] = type;
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, header.length);
+        if (payload != null)
+            crc.update(payload, 0, payload.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes a record at the buffer's position, the type byte last.
+     */
+    private static void writeRecord(MappedByteBuffer buf, byte type, long seq,
+                                    byte[] payload) {
+        int start = buf.position();
+        int length = (payload != null) ? payload.length : 0;
+        buf.putInt(start, length);
+        buf.putLong(start + 4, seq);
+        buf.putInt(start + 12, checksum(length, seq, type, payload));
+        if (length != 0) {
+            buf.position(start + HEADER);
+            buf.put(payload);
+        }
+        buf.put(start + HEADER - 1, type);
+        buf.position(start + HEADER + length);
+    }
+
+    /**
+     * Maps a new segment of at least the given size at the given
+     * position of the file. Called under appendLock, or from the
+     * constructor.
+     */
+    private void mapSegment(long base, int size) throws IOException {
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, base,
+                Math.max(size, segmentSize));
+        segmentBase = base;
+    }
+
+    /**
+     * Appends a record of the given type and returns the position
+     * just past it, offset by compactedBytes. Called under appendLock.
+     */
+    private long write(byte type, long seq, byte[] payload) throws IOException {
+        if (closed)
+            throw new IOException("journal is closed");
+        int length = (payload != null) ? payload.length : 0;
+        // Always leave room for a padding header after the record
+        if (segment.remaining() < HEADER + length + HEADER) {
+            int start = segment.position();
+            position = segmentBase + start;
+            if (pendingBytes <= position / 2) {
+                compact(HEADER + length + HEADER);
+            } else {
+                int padding = segment.remaining() - HEADER;
+                segment.putInt(start, padding);
+                segment.putLong(start + 4, 0L);
+                segment.putInt(start + 12, checksum(padding, 0L, PADDING, null));
+                segment.put(start + HEADER - 1, PADDING);
+                segment.force(); // sync only ever forces the current segment
+                position = segmentBase + segment.capacity();
+                mapSegment(position, HEADER + length + HEADER);
+            }
+        }
+        writeRecord(segment, type, seq, payload);
+        position = segmentBase + segment.position();
+        if (type == ENQUEUE) {
+            pending.put(seq, payload);
+            pendingBytes += HEADER + length;
+        } else if (type == COMPLETE) {
+            byte[] done = pending.remove(seq);
+            if (done != null)
+                pendingBytes -= HEADER + done.length;
+        }
+        return compactedBytes + position;
+    }
+
+    /**
+     * Replaces the file by one holding just the pending records, all
+     * forced to storage, and maps a segment of at least the given
+     * size after them. Called under appendLock when the current
+     * segment is full.
+     */
+    private void compact(int size) throws IOException {
+        FileChannel ch = rewrite(path, pending);
+        FileChannel old = channel;
+        channel = ch;
+        compactedBytes += position - pendingBytes;
+        position = pendingBytes;
+        mapSegment(position, size);
+        old.close();
+    }
+
+    /**
+     * Appends an enqueue record for the given task and forces it, and
+     * any records appended by other threads meanwhile, to storage.
+     *
+     * @return the sequence number of the task
+     */
+    long append(Runnable task) throws IOException {
+        byte[] payload = serialize(task);
+        long seq, end;
+        appendLock.lock();
+        try {
+            seq = ++lastSeq;
+            end = write(ENQUEUE, seq, payload);
+        } finally {
+            appendLock.unlock();
+        }
+        sync(end);
+        return seq;
+    }
+
+    /**
+     * Appends a completion mark for the given task, without forcing
+     * it. A mark that cannot be written only causes the task to be
+     * run again after a restart, so failures are ignored.
+     */
+    void complete(long seq) {
+        appendLock.lock();
+        try {
+            write(COMPLETE, seq, null);
+        } catch (IOException ignore) {
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Ensures that everything up to the given file position is on
+     * storage. The first thread to get here forces all records
+     * appended so far; the others wait for it and then usually find
+     * nothing left to do.
+     */
+    private void sync(long end) {
+        synchronized (syncLock) {
+            if (syncedTo >= end)
+                return;
+            MappedByteBuffer buf;
+            long target;
+            appendLock.lock();
+            try {
+                buf = segment;
+                target = compactedBytes + position;
+            } finally {
+                appendLock.unlock();
+            }
+            buf.force();
+            syncedTo = target;
+        }
+    }
+
+    /**
+     * Returns the tasks read back when the journal was opened, in the
+     * order they were first enqueued, and forgets them.
+     */
+    List<Entry> takeRecovered() {
+        synchronized (recovered) {
+            List<Entry> r = new ArrayList<Entry>(recovered);
+            recovered.clear();
+            return r;
+        }
+    }
+
+    /**
+     * Returns the number of tasks read back when the journal was
+     * opened that have not yet been handed to a pool.
+     *
+     * @return the number of recovered tasks
+     */
+    public int getRecoveredCount() {
+        synchronized (recovered) {
+            return recovered.size();
+        }
+    }
+
+    /**
+     * Returns the journal file.
+     *
+     * @return the path of the file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Forces all records to storage and closes the file. Tasks
+     * submitted afterwards to a pool using this journal are rejected.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        appendLock.lock();
+        try {
+            if (closed)
+                return;
+            closed = true;
+            segment.force();
+        } finally {
+            appendLock.unlock();
+        }
+        channel.close();
+    }
+
+    public String toString() {
+        return super.toString() + "[" + path + "]";
+    }
+}
@@ -0,0 +1,360 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A group of subtasks forked onto a {@link ThreadPoolExecutor} that are
+ * joined, cancelled and timed out together, so that no subtask outlives
+ * the request that forked it.
+ *
+ * <p>Under the default {@link Policy#CANCEL_ON_FAILURE} the first
+ * subtask to fail cancels all its siblings; under
+ * {@link Policy#CANCEL_ON_SUCCESS} the first to succeed does. Cancelling
+ * a subtask removes it from the pool's work queue if it has not started
+ * and interrupts the thread running it if it has, so a failed request
+ * stops using CPU as soon as the failure is known, whether or not
+ * anyone is joining yet. The same happens to all unfinished subtasks
+ * when the scope's deadline passes during a join, when a joining thread
+ * is interrupted, and when the scope is closed.
+ *
+ * <pre> {@code
+ * try (TaskScope<Row> scope = new TaskScope<Row>(pool,
+ *          TaskScope.Policy.CANCEL_ON_FAILURE, 200, TimeUnit.MILLISECONDS)) {
+ *   for (Shard s : shards)
+ *     scope.fork(() -> s.query(q));
+ *   return merge(scope.joinAll());
+ * }}</pre>
+ *
+ * <p>A scope is meant to be used by the thread that created it, but
+ * {@link #fork}, {@link #cancel} and {@link #close} may be called from
+ * any thread.
+ *
+ * @param <T> the result type of the subtasks
+ */
+public class TaskScope<T> implements AutoCloseable {
+
+    /**
+     * Which outcome of a subtask cancels its siblings.
+     */
+    public enum Policy {
+        /**
+         * The first subtask to throw cancels the others; for
+         * {@link #joinAll}
+         */
+        CANCEL_ON_FAILURE,
+        /**
+         * The first subtask to return cancels the others; for
+         * {@link #joinAny}
+         */
+        CANCEL_ON_SUCCESS
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Policy policy;
+    private final boolean timed;
+    private final long deadline;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    /*
+     * State guarded by lock.
+     */
+    private final List<Subtask> subtasks = new ArrayList<Subtask>();
+    private int unfinished;
+    private boolean cancelled;
+    private boolean closed;
+    private Throwable firstFailure;
+    private Subtask firstSuccess;
+
+    /**
+     * Creates a scope without a deadline that cancels on failure.
+     *
+     * @param pool the pool to run subtasks on
+     * @throws NullPointerException if pool is null
+     */
+    public TaskScope(ThreadPoolExecutor pool) {
+        this(pool, Policy.CANCEL_ON_FAILURE, false, 0L);
+    }
+
+    /**
+     * Creates a scope whose joins time out, cancelling all unfinished
+     * subtasks, once the given time has elapsed from now.
+     *
+     * @param pool    the pool to run subtasks on
+     * @param policy  which outcome cancels the siblings
+     * @param timeout the time until the deadline
+     * @param unit    the time unit of the timeout argument
+     * @throws NullPointerException if pool, policy or unit is null
+     */
+    public TaskScope(ThreadPoolExecutor pool, Policy policy,
+                     long timeout, TimeUnit unit) {
+        this(pool, policy, true, System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    private TaskScope(ThreadPoolExecutor pool, Policy policy,
+                      boolean timed, long deadline) {
+        if (pool == null || policy == null)
+            throw new NullPointerException();
+        this.pool = pool;
+        this.policy = policy;
+        this.timed = timed;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Runs the given task on the pool as part of this scope. If the
+     * scope has already been cancelled, the task is not run and the
+     * returned future is cancelled.
+     *
+     * @param task the task
+     * @return a future for the subtask
+     * @throws RejectedExecutionException if the pool rejects the task;
+     *                                    the subtask then counts as
+     *                                    failed with this exception
+     * @throws IllegalStateException      if the scope is closed
+     * @throws NullPointerException       if task is null
+     */
+    public Future<T> fork(Callable<? extends T> task) {
+        if (task == null)
+            throw new NullPointerException();
+        Subtask s = new Subtask(task);
+        boolean run;
+        lock.lock();
+        try {
+            if (closed)
+                throw new IllegalStateException("scope is closed");
+            subtasks.add(s);
+            ++unfinished;
+            run = !cancelled;
+        } finally {
+            lock.unlock();
+        }
+        if (!run) {
+            s.cancel(false);
+        } else {
+            try {
+                pool.execute(s);
+            } catch (RejectedExecutionException ex) {
+                s.reject(ex);
+                throw ex;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * Waits for all subtasks to complete and returns their results in
+     * the order they were forked.
+     *
+     * @return the results
+     * @throws ExecutionException   if a subtask failed; the cause is
+     *                              the first failure
+     * @throws CancellationException if a subtask was cancelled and none
+     *                              failed
+     * @throws TimeoutException     if the deadline passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<T> joinAll()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        List<Subtask> all;
+        Throwable failure;
+        lock.lock();
+        try {
+            while (unfinished > 0)
+                awaitChange();
+            all = new ArrayList<Subtask>(subtasks);
+            failure = firstFailure;
+        } finally {
+            lock.unlock();
+        }
+        if (failure != null)
+            throw new ExecutionException(failure);
+        List<T> results = new ArrayList<T>(all.size());
+        for (Subtask s : all)
+            results.add(s.get());
+        return results;
+    }
+
+    /**
+     * Waits for the first subtask to complete successfully, cancels
+     * the others, and returns its result.
+     *
+     * @return the result of the first subtask to succeed
+     * @throws ExecutionException   if no subtask succeeded; the cause
+     *                              is the first failure
+     * @throws CancellationException if none succeeded and none failed
+     * @throws TimeoutException     if the deadline passed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T joinAny()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        Subtask winner;
+        Throwable failure;
+        lock.lock();
+        try {
+            while (firstSuccess == null && unfinished > 0)
+                awaitChange();
+            winner = firstSuccess;
+            failure = firstFailure;
+        } finally {
+            lock.unlock();
+        }
+        cancel();
+        if (winner != null)
+            return winner.get();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        throw new CancellationException();
+    }
+
+    /**
+     * Waits for a change under lock, cancelling all subtasks if the
+     * deadline passes or the thread is interrupted.
+     */
+    private void awaitChange() throws InterruptedException, TimeoutException {
+        try {
+            if (!timed) {
+                changed.await();
+            } else {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0L) {
+                    lock.unlock();
+                    try {
+                        cancel();
+                    } finally {
+                        lock.lock();
+                    }
+                    throw new TimeoutException();
+                }
+                changed.awaitNanos(nanos);
+            }
+        } catch (InterruptedException ie) {
+            lock.unlock();
+            try {
+                cancel();
+            } finally {
+                lock.lock();
+            }
+            throw ie;
+        }
+    }
+
+    /**
+     * Cancels all unfinished subtasks: those still queued are removed
+     * from the pool's work queue, and the threads running the others
+     * are interrupted. Subtasks forked afterwards are cancelled
+     * without being run.
+     */
+    public void cancel() {
+        List<Subtask> all;
+        lock.lock();
+        try {
+            cancelled = true;
+            all = new ArrayList<Subtask>(subtasks);
+        } finally {
+            lock.unlock();
+        }
+        for (Subtask s : all) {
+            if (!s.isDone()) {
+                pool.remove(s);
+                s.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Returns true if this scope has been cancelled, by
+     * {@link #cancel}, by its policy, or on timeout or interrupt.
+     *
+     * @return {@code true} if cancelled
+     */
+    public boolean isCancelled() {
+        lock.lock();
+        try {
+            return cancelled;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels all unfinished subtasks and closes the scope, so that
+     * no more subtasks can be forked. This does not wait for the
+     * threads running cancelled subtasks to respond to interruption.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        cancel();
+    }
+
+    /**
+     * Called when a subtask completes in any way.
+     */
+    private void onDone(Subtask s) {
+        boolean cancelSiblings = false;
+        lock.lock();
+        try {
+            --unfinished;
+            if (!s.isCancelled()) {
+                Throwable ex = s.failure();
+                if (ex != null) {
+                    if (firstFailure == null) {
+                        firstFailure = ex;
+                        cancelSiblings = policy == Policy.CANCEL_ON_FAILURE;
+                    }
+                } else if (firstSuccess == null) {
+                    firstSuccess = s;
+                    cancelSiblings = policy == Policy.CANCEL_ON_SUCCESS;
+                }
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (cancelSiblings)
+            cancel();
+    }
+
+    private final class Subtask extends FutureTask<T> {
+        Subtask(Callable<? extends T> task) {
+            super(cast(task));
+        }
+
+        void reject(RejectedExecutionException ex) {
+            setException(ex);
+        }
+
+        /**
+         * Returns the exception the subtask failed with, or null.
+         * Called only once done.
+         */
+        Throwable failure() {
+            try {
+                get();
+                return null;
+            } catch (ExecutionException ex) {
+                return ex.getCause();
+            } catch (InterruptedException | CancellationException ex) {
+                return null;
+            }
+        }
+
+        protected void done() {
+            onDone(this);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Callable<T> cast(Callable<? extends T> task) {
+        return (Callable<T>) task;
+    }
+}
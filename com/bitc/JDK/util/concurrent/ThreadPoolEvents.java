@@ -0,0 +1,248 @@
+package com.bitc.JDK.util.concurrent;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder events emitted by {@link ThreadPoolExecutor}.
+ *
+ * <p>Every emitting method first asks a preallocated probe event
+ * whether its type is enabled in any running recording, so when no
+ * recording is active the cost of each call site is a single
+ * predictable branch and no event object is ever allocated.
+ * Per-task events (enqueue and dequeue) are disabled by default since
+ * they fire once per submission; task execution is enabled but only
+ * recorded when the task runs longer than its threshold, which can be
+ * changed in a recording's settings like any other JFR threshold.
+ *
+ * 注：poolId用来区分同一进程中的多个线程池
+ */
+final class ThreadPoolEvents {
+
+    private ThreadPoolEvents() {
+    }
+
+    @Name("com.bitc.ThreadPool.TaskEnqueue")
+    @Label("Task Enqueue")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A task was accepted into the work queue")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class TaskEnqueueEvent extends Event {
+        static final TaskEnqueueEvent PROBE = new TaskEnqueueEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Task Class")
+        Class<?> taskClass;
+
+        @Label("Queue Size")
+        int queueSize;
+    }
+
+    @Name("com.bitc.ThreadPool.TaskDequeue")
+    @Label("Task Dequeue")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A worker took a task from the work queue")
+    @Enabled(false)
+    @StackTrace(false)
+    static final class TaskDequeueEvent extends Event {
+        static final TaskDequeueEvent PROBE = new TaskDequeueEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Task Class")
+        Class<?> taskClass;
+    }
+
+    @Name("com.bitc.ThreadPool.TaskExecution")
+    @Label("Task Execution")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A task ran on a worker thread for longer than the threshold")
+    @Threshold("20 ms")
+    @StackTrace(false)
+    static final class TaskExecutionEvent extends Event {
+        static final TaskExecutionEvent PROBE = new TaskExecutionEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Task Class")
+        Class<?> taskClass;
+
+        @Label("Thrown")
+        Class<?> thrown;
+    }
+
+    @Name("com.bitc.ThreadPool.TaskRejected")
+    @Label("Task Rejected")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A task was handed to the rejected execution handler")
+    static final class TaskRejectedEvent extends Event {
+        static final TaskRejectedEvent PROBE = new TaskRejectedEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Task Class")
+        Class<?> taskClass;
+
+        @Label("Pool Size")
+        int poolSize;
+
+        @Label("Queue Size")
+        int queueSize;
+    }
+
+    @Name("com.bitc.ThreadPool.WorkerStart")
+    @Label("Worker Start")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A worker thread began its run loop")
+    @StackTrace(false)
+    static final class WorkerStartEvent extends Event {
+        static final WorkerStartEvent PROBE = new WorkerStartEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Worker Count")
+        int workerCount;
+    }
+
+    @Name("com.bitc.ThreadPool.WorkerExit")
+    @Label("Worker Exit")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("A worker thread left its run loop")
+    @StackTrace(false)
+    static final class WorkerExitEvent extends Event {
+        static final WorkerExitEvent PROBE = new WorkerExitEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("Completed Abruptly")
+        @Description("The worker died because a task or hook threw")
+        boolean completedAbruptly;
+
+        @Label("Completed Tasks")
+        long completedTasks;
+    }
+
+    @Name("com.bitc.ThreadPool.RunState")
+    @Label("Run State Transition")
+    @Category({"Java Application", "Thread Pool"})
+    @Description("The pool moved to a later run state, or was paused or resumed")
+    static final class RunStateEvent extends Event {
+        static final RunStateEvent PROBE = new RunStateEvent();
+
+        @Label("Pool Id")
+        long poolId;
+
+        @Label("From")
+        String from;
+
+        @Label("To")
+        String to;
+
+        @Label("Worker Count")
+        int workerCount;
+    }
+
+    static void taskEnqueued(long poolId, Runnable task, BlockingQueue<?> queue) {
+        if (TaskEnqueueEvent.PROBE.isEnabled()) {
+            TaskEnqueueEvent e = new TaskEnqueueEvent();
+            e.poolId = poolId;
+            e.taskClass = task.getClass();
+            e.queueSize = queue.size();
+            e.commit();
+        }
+    }
+
+    static void taskDequeued(long poolId, Runnable task) {
+        if (TaskDequeueEvent.PROBE.isEnabled()) {
+            TaskDequeueEvent e = new TaskDequeueEvent();
+            e.poolId = poolId;
+            e.taskClass = task.getClass();
+            e.commit();
+        }
+    }
+
+    /**
+     * Starts timing a task, returning null if execution events are
+     * not being recorded.
+     */
+    static TaskExecutionEvent taskStarted(long poolId, Runnable task) {
+        if (!TaskExecutionEvent.PROBE.isEnabled())
+            return null;
+        TaskExecutionEvent e = new TaskExecutionEvent();
+        e.poolId = poolId;
+        e.taskClass = task.getClass();
+        e.begin();
+        return e;
+    }
+
+    /**
+     * Ends timing of a task started with {@link #taskStarted}; the
+     * event is only written if its duration exceeds the threshold.
+     */
+    static void taskEnded(TaskExecutionEvent e, Throwable thrown) {
+        if (e != null) {
+            e.end();
+            if (e.shouldCommit()) {
+                if (thrown != null)
+                    e.thrown = thrown.getClass();
+                e.commit();
+            }
+        }
+    }
+
+    static void taskRejected(long poolId, Runnable task, int poolSize,
+                             BlockingQueue<?> queue) {
+        if (TaskRejectedEvent.PROBE.isEnabled()) {
+            TaskRejectedEvent e = new TaskRejectedEvent();
+            e.poolId = poolId;
+            e.taskClass = task.getClass();
+            e.poolSize = poolSize;
+            e.queueSize = queue.size();
+            e.commit();
+        }
+    }
+
+    static void workerStarted(long poolId, int workerCount) {
+        if (WorkerStartEvent.PROBE.isEnabled()) {
+            WorkerStartEvent e = new WorkerStartEvent();
+            e.poolId = poolId;
+            e.workerCount = workerCount;
+            e.commit();
+        }
+    }
+
+    static void workerExited(long poolId, boolean completedAbruptly, long completedTasks) {
+        if (WorkerExitEvent.PROBE.isEnabled()) {
+            WorkerExitEvent e = new WorkerExitEvent();
+            e.poolId = poolId;
+            e.completedAbruptly = completedAbruptly;
+            e.completedTasks = completedTasks;
+            e.commit();
+        }
+    }
+
+    static void runStateChanged(long poolId, String from, String to, int workerCount) {
+        if (RunStateEvent.PROBE.isEnabled()) {
+            RunStateEvent e = new RunStateEvent();
+            e.poolId = poolId;
+            e.from = from;
+            e.to = to;
+            e.workerCount = workerCount;
+            e.commit();
+        }
+    }
+}
@@ -35,11 +35,28 @@
 
 package com.bitc.JDK.util.concurrent;
 
-import java.util.concurrent.locks.AbstractQueuedSynchronizer;
+import com.bitc.JDK.lang.ThreadLocal;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.lang.ref.WeakReference;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 
 /**
  * An {@link ExecutorService} that executes each submitted task using
@@ -130,7 +147,11 @@ import java.util.*;
  * applies only when there are more than corePoolSize threads. But
  * method {@link #allowCoreThreadTimeOut(boolean)} can be used to
  * apply this time-out policy to core threads as well, so long as the
- * keepAliveTime value is non-zero. </dd>
+ * keepAliveTime value is non-zero. Under load that swings between
+ * busy and idle periods, timing out every idle thread independently
+ * means the threads retired in one lull are created again in the next
+ * burst; method {@link #setRetirementPolicy} makes retirement follow a
+ * smoothed estimate of demand instead, at a bounded rate. </dd>
  *
  * <dt>Queuing</dt>
  *
@@ -202,7 +223,8 @@ import java.util.*;
  * <dd>New tasks submitted in method {@link #execute(Runnable)} will be
  * <em>rejected</em> when the Executor has been shut down, and also when
  * the Executor uses finite bounds for both maximum threads and work queue
- * capacity, and is saturated.  In either case, the {@code execute} method
+ * capacity, and is saturated, or when a byte budget is exhausted (see
+ * below).  In each case, the {@code execute} method
  * invokes the {@link
  * RejectedExecutionHandler#rejectedExecution(Runnable, ThreadPoolExecutor)}
  * method of its {@link RejectedExecutionHandler}.  Four predefined handler
@@ -234,6 +256,47 @@ import java.util.*;
  * especially when policies are designed to work only under particular
  * capacity or queuing policies. </dd>
  *
+ * <dt>Byte budget</dt>
+ *
+ * <dd>Queue capacities bound the number of tasks, not the memory they
+ * hold. Tasks that implement {@link SizedTask} declare an estimated
+ * size, and {@link #setByteBudget} bounds the total size of the sized
+ * tasks that are queued or running. A task that does not fit is
+ * rejected, or, under {@link BudgetPolicy#BLOCK}, waits in
+ * {@code execute} until running tasks complete. The total currently
+ * charged is reported by {@link #getBudgetedBytes}.</dd>
+ *
+ * <dt>Rate limiting</dt>
+ *
+ * <dd>Method {@link #setDispatchRate} limits the rate at which workers
+ * start tasks, with a burst allowance. Each worker waits for its turn
+ * holding the next task, so excess tasks stay queued and no worker is
+ * tied up sleeping inside a task.</dd>
+ *
+ * <dt>Hedged execution</dt>
+ *
+ * <dd>Method {@link #hedge(Callable)} runs an idempotent task and, if
+ * it has not completed within the pool's 95th percentile run time of
+ * starting, a backup copy, taking whichever result comes first and
+ * cancelling the other. This trims the latency tail caused by an occasional slow
+ * run at the cost of a few percent more work.</dd>
+ *
+ * <dt>Journaling</dt>
+ *
+ * <dd>With a {@link TaskJournal} set (see {@link #setJournal}),
+ * serializable tasks are appended to a memory-mapped write-ahead log
+ * before {@code execute} returns and marked complete after they run,
+ * and the tasks a crashed or stopped process left unfinished are run
+ * again when the journal is reopened.</dd>
+ *
+ * <dt>Pausing</dt>
+ *
+ * <dd>Method {@link #pause} stops workers from starting tasks while
+ * the pool keeps accepting and queuing them, for example during a
+ * failover, until {@link #resume} is invoked. Unlike a
+ * {@code beforeExecute} hook that blocks, this costs nothing while
+ * the pool is not paused.</dd>
+ *
  * <dt>Hook methods</dt>
  *
  * <dd>This class provides {@code protected} overridable
@@ -249,6 +312,28 @@ import java.util.*;
  * <p>If hook or callback methods throw exceptions, internal worker
  * threads may in turn fail and abruptly terminate.</dd>
  *
+ * <dt>Flight Recorder events</dt>
+ *
+ * <dd>Each pool emits JDK Flight Recorder events for task enqueue,
+ * dequeue, execution and rejection, for worker start and exit, and
+ * for run state transitions, pause and resume. Task execution events
+ * are only recorded for tasks that run longer than the event
+ * threshold (20 ms unless changed in the recording settings), and
+ * enqueue/dequeue events are disabled by default. When no recording is active the events cost
+ * a single check per call site. Events carry a pool id so that
+ * several pools can be told apart in one recording.</dd>
+ *
+ * <dt>Management</dt>
+ *
+ * <dd>Method {@link #snapshot} returns all pool statistics gathered
+ * in a single pass, including task latency percentiles when
+ * {@linkplain #setLatencyTracking latency tracking} is enabled.
+ * Method {@link #registerMBean} exposes the snapshot and the sizing
+ * parameters through a {@link ThreadPoolExecutorMXBean}; pools can be
+ * registered automatically by setting the system property
+ * {@code com.bitc.JDK.util.concurrent.ThreadPoolExecutor.registerMBeans}
+ * to {@code true}.</dd>
+ *
  * <dt>Queue maintenance</dt>
  *
  * <dd>Method {@link #getQueue()} allows access to the work queue
@@ -319,17 +404,16 @@ import java.util.*;
  */
 public class ThreadPoolExecutor extends AbstractExecutorService {
     /**
-     * The main pool control state, ctl, is an atomic integer packing
+     * The main pool control state, ctl, is an atomic long packing
      * two conceptual fields
      * workerCount, indicating the effective number of threads
      * runState,    indicating whether running, shutting down etc
      * <p>
-     * In order to pack them into one int, we limit workerCount to
-     * (2^29)-1 (about 500 million) threads rather than (2^31)-1 (2
-     * billion) otherwise representable. If this is ever an issue in
-     * the future, the variable can be changed to be an AtomicLong,
-     * and the shift/mask constants below adjusted. But until the need
-     * arises, this code is a bit faster and simpler using an int.
+     * runState takes the top three bits and the paused flag (see
+     * below) the next one, and workerCount the low-order bits. Being
+     * a long, ctl has room for every count an int can hold, so
+     * workerCount is limited only to (2^31)-1 threads rather than
+     * the (2^29)-1 an int would leave.
      * <p>
      * The workerCount is the number of workers that have been
      * permitted to start and not permitted to stop.  The value may be
@@ -339,6 +423,12 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * bookkeeping before terminating. The user-visible pool size is
      * reported as the current size of the workers set.
      * <p>
+     * The number of workers running a task is deliberately not kept
+     * in ctl: it changes twice per task, and each change would
+     * contend with every other worker on the one word and make the
+     * CAS loops in addWorker and getTask retry. It is kept in
+     * activeWorkers instead.
+     * <p>
      * The runState provides the main lifecycle control, taking on values:
      * <p>
      * RUNNING:  Accept new tasks and process queued tasks
@@ -374,59 +464,97 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * we can only terminate if, after seeing that it is empty, we see
      * that workerCount is 0 (which sometimes entails a recheck -- see
      * below).
+     * <p>
+     * The PAUSED bit may be set only while RUNNING, by pause(), and is
+     * cleared by resume() and by every runState transition (which all
+     * rebuild the state bits with ctlOf or withRunState). A paused ctl
+     * is still negative, so the runState comparisons below need not
+     * mask it, and workers test it on the ctl value getTask reads
+     * anyway, so an unpaused pool pays nothing for it. While it is
+     * set, workers wait in awaitResume rather than starting tasks.
      */
-    private final AtomicInteger ctl = new AtomicInteger(ctlOf(RUNNING, 0));
-    private static final int COUNT_BITS = Integer.SIZE - 3;
-    private static final int CAPACITY = (1 << COUNT_BITS) - 1;
+    private final AtomicLong ctl = new AtomicLong(ctlOf(RUNNING, 0));
+    private static final int COUNT_BITS = Long.SIZE - 3;
+    private static final long PAUSED = 1L << (COUNT_BITS - 1);
+    private static final int CAPACITY = Integer.MAX_VALUE;
+    private static final long COUNTS = PAUSED - 1;
 
     // runState is stored in the high-order bits
-    private static final int RUNNING = -1 << COUNT_BITS;
-    private static final int SHUTDOWN = 0 << COUNT_BITS;
-    private static final int STOP = 1 << COUNT_BITS;
-    private static final int TIDYING = 2 << COUNT_BITS;
-    private static final int TERMINATED = 3 << COUNT_BITS;
+    private static final long RUNNING = -1L << COUNT_BITS;
+    private static final long SHUTDOWN = 0L << COUNT_BITS;
+    private static final long STOP = 1L << COUNT_BITS;
+    private static final long TIDYING = 2L << COUNT_BITS;
+    private static final long TERMINATED = 3L << COUNT_BITS;
 
     // Packing and unpacking ctl
-    private static int runStateOf(int c) {
-        return c & ~CAPACITY;
+    private static long runStateOf(long c) {
+        return c & (-1L << COUNT_BITS);
     }
 
-    private static int workerCountOf(int c) {
-        return c & CAPACITY;
+    private static int workerCountOf(long c) {
+        return (int) c & CAPACITY;
     }
 
-    private static int ctlOf(int rs, int wc) {
+    private static long ctlOf(long rs, int wc) {
         return rs | wc;
     }
 
+    /**
+     * Returns c moved to the given runState with its counts kept and
+     * the paused flag cleared.
+     */
+    private static long withRunState(long c, long rs) {
+        return rs | (c & COUNTS);
+    }
+
     /*
      * Bit field accessors that don't require unpacking ctl.
      * These depend on the bit layout and on workerCount being never negative.
      */
 
-    private static boolean runStateLessThan(int c, int s) {
+    private static boolean runStateLessThan(long c, long s) {
         return c < s;
     }
 
-    private static boolean runStateAtLeast(int c, int s) {
+    private static boolean runStateAtLeast(long c, long s) {
         return c >= s;
     }
 
-    private static boolean isRunning(int c) {
+    private static boolean isRunning(long c) {
         return c < SHUTDOWN;
     }
 
+    private static boolean isPaused(long c) {
+        return (c & PAUSED) != 0;
+    }
+
+    /**
+     * Returns the name of the given runState, for events and
+     * diagnostics.
+     */
+    private static String runStateName(long rs) {
+        if (rs < SHUTDOWN)
+            return "RUNNING";
+        if (rs == SHUTDOWN)
+            return "SHUTDOWN";
+        if (rs == STOP)
+            return "STOP";
+        if (rs == TIDYING)
+            return "TIDYING";
+        return "TERMINATED";
+    }
+
     /**
      * Attempts to CAS-increment the workerCount field of ctl.
      */
-    private boolean compareAndIncrementWorkerCount(int expect) {
+    private boolean compareAndIncrementWorkerCount(long expect) {
         return ctl.compareAndSet(expect, expect + 1);
     }
 
     /**
      * Attempts to CAS-decrement the workerCount field of ctl.
      */
-    private boolean compareAndDecrementWorkerCount(int expect) {
+    private boolean compareAndDecrementWorkerCount(long expect) {
         return ctl.compareAndSet(expect, expect - 1);
     }
 
@@ -457,11 +585,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Lock held on access to workers set and related bookkeeping.
      * While we could use a concurrent set of some sort, it turns out
      * to be generally preferable to use a lock. Among the reasons is
-     * that this serializes interruptIdleWorkers, which avoids
-     * unnecessary interrupt storms, especially during shutdown.
-     * Otherwise exiting threads would concurrently interrupt those
-     * that have not yet interrupted. It also simplifies some of the
-     * associated statistics bookkeeping of largestPoolSize etc. We
+     * that it simplifies some of the associated statistics
+     * bookkeeping of largestPoolSize etc. (interruptIdleWorkers does
+     * not need it: see idleWorkers). We
      * also hold mainLock on shutdown and shutdownNow, for the sake of
      * ensuring workers set is stable while separately checking
      * permission to interrupt and actually interrupting.
@@ -474,16 +600,51 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private final HashSet<Worker> workers = new HashSet<Worker>();
 
+    /**
+     * Workers that may be idle, that is, inside getTask. A worker
+     * adds itself when it enters getTask unless it is already listed,
+     * and is removed by interruptIdleWorkers, which polls entries
+     * until it has interrupted enough of them. An entry whose worker
+     * has since taken a task is skipped, and the worker lists itself
+     * again the next time it enters getTask. An entry whose worker
+     * has exited is dropped by the poller that reaches it, without
+     * counting against its bound, rather than searched for by the
+     * exiting worker, which would make each exit linear in the pool
+     * size; and so that such entries do not pile up in a pool that
+     * is never signalled, an exiting worker sweeps them all out once
+     * they outnumber the live workers (see staleIdleEntries).
+     * Because each entry is claimed by exactly one poller, concurrent
+     * callers (such as exiting threads propagating shutdown) never
+     * interrupt the same worker twice, without holding mainLock, and
+     * the cost of a call is proportional to the number of idle
+     * workers rather than to the pool size.
+     */
+    private final ConcurrentLinkedQueue<Worker> idleWorkers =
+            new ConcurrentLinkedQueue<Worker>();
+
+    /**
+     * The number of idleWorkers entries whose worker has exited.
+     * Incremented by a worker that exits while listed, and
+     * decremented by whoever then unlists it, so each such entry is
+     * counted exactly once.
+     */
+    private final AtomicInteger staleIdleEntries = new AtomicInteger();
+
     /**
      * Wait condition to support awaitTermination
      */
     private final Condition termination = mainLock.newCondition();
 
     /**
-     * Tracks largest attained pool size. Accessed only under
-     * mainLock.
+     * Wait condition for workers while the pool is paused.
      */
-    private int largestPoolSize;
+    private final Condition resumed = mainLock.newCondition();
+
+    /**
+     * Tracks largest attained pool size. Updated only under mainLock;
+     * volatile so that snapshot can read it without the lock.
+     */
+    private volatile int largestPoolSize;
 
     /**
      * Counter for completed tasks. Updated only on termination of
@@ -491,6 +652,135 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private long completedTaskCount;
 
+    /**
+     * Counter for tasks passed to the rejected execution handler.
+     */
+    private final LongAdder rejectedTaskCount = new LongAdder();
+
+    /**
+     * Counter for completed tasks, updated by runWorker after each
+     * task, so that snapshot need not take mainLock and add up the
+     * per-worker counters as getCompletedTaskCount does.
+     */
+    private final LongAdder completions = new LongAdder();
+
+    /**
+     * Total estimated size of the sized tasks that have been accepted
+     * and have not yet completed or left the queue (see SizedTask).
+     * Maintained whether or not a byte budget is set.
+     */
+    private final AtomicLong budgetedBytes = new AtomicLong();
+
+    /**
+     * Number of threads blocked in execute waiting for byte budget.
+     * Updated only under mainLock, read by releaseBytes to decide
+     * whether to signal budgetAvailable.
+     */
+    private volatile int budgetWaiters;
+
+    /**
+     * Wait condition for threads blocked in execute under
+     * BudgetPolicy.BLOCK.
+     */
+    private final Condition budgetAvailable = mainLock.newCondition();
+
+    /**
+     * Task execution latencies, or null if latency tracking is
+     * disabled (the default). Read once per task by runWorker.
+     */
+    private volatile LatencyHistogram latencies;
+
+    /**
+     * Number of ThreadPoolWatchdogs watching this pool. While
+     * positive, runWorker records the start time of each task in
+     * Worker.taskStartTime.
+     */
+    private final AtomicInteger taskStartWatchers = new AtomicInteger();
+
+    /**
+     * Number of workers currently blocked inside managedBlock. Each
+     * blocked worker may be compensated for by an extra worker (see
+     * compensationAllowance).
+     */
+    private final AtomicInteger blockedWorkers = new AtomicInteger();
+
+    /**
+     * The number of workers running a task: incremented by runWorker
+     * after locking a worker for a task and decremented before
+     * unlocking it. A striped counter, so that workers finishing
+     * tasks at once do not contend on one word (see ctl).
+     */
+    private final LongAdder activeWorkers = new LongAdder();
+
+    /**
+     * The worker run by the current thread, of any pool, so that
+     * managedBlock can find the pool of the calling task. Set when a
+     * worker starts and removed when it exits, touching only the
+     * worker's own thread. Thread-local scrubbing keeps it out of the
+     * baseline and retains it across every reset.
+     */
+    private static final ThreadLocal<Worker> currentWorker =
+            new ThreadLocal<Worker>();
+
+    /**
+     * Thread-locals whose values are carried from the submitting
+     * thread to the worker running each task, or null if none are
+     * registered. Replaced (never modified) under mainLock.
+     */
+    private volatile ThreadLocal<?>[] contextCarriers;
+
+    /**
+     * Set once any task has been queued or handed to a worker inside
+     * a TaskEnvelope, after which remove also looks for envelopes
+     * wrapping the task it is given. Never cleared.
+     */
+    private volatile boolean tasksWrapped;
+
+    /**
+     * If true, runWorker resets each worker's thread-locals after
+     * every task to what they were before its first task (see
+     * setThreadLocalScrubbing).
+     */
+    private volatile boolean scrubThreadLocals;
+
+    /**
+     * If true, a worker whose task throws reports the exception and
+     * continues instead of terminating (see
+     * setKeepWorkersOnTaskFailure).
+     */
+    private volatile boolean keepWorkersOnTaskFailure;
+
+    /**
+     * The policy idle workers consult before timing out, or null if
+     * they time out independently (see setRetirementPolicy).
+     */
+    private volatile Retirement retirement;
+
+    /**
+     * The journal serializable tasks are appended to, or null.
+     */
+    private volatile TaskJournal journal;
+
+    /**
+     * The name under which this pool's MBean is registered, or null
+     * if not registered. Accessed only under mbeanLock.
+     */
+    private ObjectName mbeanName;
+
+    /**
+     * Lock held while registering or unregistering the MBean. Separate
+     * from mainLock, which is never held across MBean server calls, so
+     * that a slow registration does not stall workers starting and
+     * exiting. May be taken before mainLock, never after.
+     */
+    private final Object mbeanLock = new Object();
+
+    /**
+     * Set once the pool has attempted its automatic registration (see
+     * registerMBeans), so that it is attempted at most once.
+     */
+    private volatile boolean mbeanAutoRegistered;
+
     /*
      * All user control parameters are declared as volatiles so that
      * ongoing actions are based on freshest values, but without need
@@ -550,6 +840,32 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     private volatile int maximumPoolSize;
 
+    /**
+     * Maximum number of workers that may be started beyond
+     * maximumPoolSize to compensate for workers blocked in
+     * managedBlock. Zero (the default) means that compensation
+     * workers count against maximumPoolSize like any other.
+     */
+    private volatile int maximumCompensation;
+
+    /**
+     * Limits the rate at which workers start tasks, or null if not
+     * limited. Replaced, never modified, to change the rate.
+     */
+    private volatile TokenBucket dispatchRate;
+
+    /**
+     * Maximum value of budgetedBytes for accepting another sized
+     * task. Long.MAX_VALUE (the default) means unbounded.
+     */
+    private volatile long byteBudget = Long.MAX_VALUE;
+
+    /**
+     * What execute does with a sized task that does not fit in the
+     * byte budget.
+     */
+    private volatile BudgetPolicy budgetPolicy = BudgetPolicy.REJECT;
+
     /**
      * The default rejected execution handler
      */
@@ -579,31 +895,79 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     private static final RuntimePermission shutdownPerm =
             new RuntimePermission("modifyThread");
 
+    /**
+     * Source of pool identifiers.
+     */
+    private static final AtomicLong poolSequence = new AtomicLong();
+
+    /**
+     * Identifies this pool in Flight Recorder events (see
+     * ThreadPoolEvents), so that events from several pools in one
+     * recording can be told apart.
+     */
+    final long poolId = poolSequence.incrementAndGet();
+
+    /**
+     * If true, every pool registers its MBean when it starts its
+     * first worker (see registerMBean), rather than in the
+     * constructor, where the pool would be published to the MBean
+     * server before a subclass constructor had run. Off by default
+     * since registration keeps a
+     * (weak) reference in the platform MBean server and costs some
+     * work per pool.
+     */
+    private static final boolean registerMBeans =
+            Boolean.getBoolean("com.bitc.JDK.util.concurrent.ThreadPoolExecutor.registerMBeans");
+
+    /**
+     * Domain of registered MBean names.
+     */
+    private static final String MBEAN_DOMAIN = "com.bitc.JDK.util.concurrent";
+
+    /**
+     * Percentiles reported in snapshots.
+     */
+    private static final double[] SNAPSHOT_PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
     /**
      * Class Worker mainly maintains interrupt control state for
      * threads running tasks, along with other minor bookkeeping.
-     * This class opportunistically extends AbstractQueuedSynchronizer
-     * to simplify acquiring and releasing a lock surrounding each
-     * task execution.  This protects against interrupts that are
-     * intended to wake up a worker thread waiting for a task from
-     * instead interrupting a task being run.  We implement a simple
-     * non-reentrant mutual exclusion lock rather than use
-     * ReentrantLock because we do not want worker tasks to be able to
-     * reacquire the lock when they invoke pool control methods like
-     * setCorePoolSize.  Additionally, to suppress interrupts until
-     * the thread actually starts running tasks, we initialize lock
-     * state to a negative value, and clear it upon start (in
-     * runWorker).
-     */
-    private final class Worker
-            extends AbstractQueuedSynchronizer
-            implements Runnable {
-        /**
-         * This class will never be serialized, but we provide a
-         * serialVersionUID to suppress a javac warning.
-         */
-        private static final long serialVersionUID = 6138294804551838833L;
-
+     * All of that control state lives in one int, changed by
+     * compare-and-set:
+     *
+     * LOCKED is held by the worker around each task it runs, and
+     * briefly by a thread interrupting the worker while idle.  This
+     * protects against interrupts that are intended to wake up a
+     * worker thread waiting for a task from instead interrupting a
+     * task being run.  Only the worker itself ever waits for the
+     * bit, and only for as long as an interrupter takes to call
+     * Thread.interrupt, so it spins (yielding) rather than queuing;
+     * the lock is not reentrant, so worker tasks cannot reacquire it
+     * when they invoke pool control methods like setCorePoolSize.
+     *
+     * IDLE and LISTED track idleness for interruptIdleWorkers (see
+     * idleWorkers). Taking the lock for a task clears IDLE, and
+     * releasing it after the task sets IDLE and LISTED, so a worker
+     * going round the run loop pays one CAS on each side of a task.
+     * EXITED is set, and IDLE cleared, once the worker leaves the run
+     * loop, so that a leftover entry is known to be stale.
+     *
+     * INTERRUPTING is held by a watchdog across checking that the
+     * worker is still running a given task and interrupting it (see
+     * interruptTask). The worker, having cleared taskStartTime after
+     * the task, waits for the bit to clear before going on, so the
+     * interrupt reaches it before it clears stray interrupts ahead
+     * of its next task, and never lands on that task.
+     *
+     * NEW suppresses interrupts, and counts as locked, until the
+     * thread actually starts running tasks; it is set on
+     * construction and cleared upon start (in runWorker).
+     *
+     * No thread ever blocks on the lock, so a plain word serves
+     * where an AbstractQueuedSynchronizer would carry a wait queue
+     * that is never used.
+     */
+    private final class Worker implements Runnable {
         /**
          * 该Woker正在运行的线程。如果工厂方法失败，则为空。(Null if factory fails.)
          */
@@ -616,6 +980,16 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * Per-thread task counter
          */
         volatile long completedTasks;
+        /**
+         * System.nanoTime at which the current task started, or 0 if
+         * idle. Maintained only while a watchdog is watching the pool
+         * (see watchTaskStarts).
+         */
+        volatile long taskStartTime;
+        /**
+         * LOCKED, IDLE, LISTED, NEW, EXITED and INTERRUPTING bits.
+         */
+        volatile int state;
 
         /**
          * Creates with given first task and thread from ThreadFactory.
@@ -623,7 +997,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * @param firstTask the first task (null if none)
          */
         Worker(Runnable firstTask) {
-            setState(-1); // 在runWorker之前禁止中断-->为什么？
+            state = NEW; // 在runWorker之前禁止中断-->为什么？
             this.firstTask = firstTask;
             this.thread = getThreadFactory().newThread(this);
         }
@@ -635,48 +1009,176 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             runWorker(this);
         }
 
+        /**
+         * Returns the pool this worker belongs to.
+         */
+        ThreadPoolExecutor pool() {
+            return ThreadPoolExecutor.this;
+        }
+
+        private boolean casState(int expect, int update) {
+            return STATE.compareAndSet(this, expect, update);
+        }
+
+        /**
+         * Allows interrupts; called once the thread is running.
+         */
+        void start() {
+            int s;
+            do {
+                s = state;
+            } while (!casState(s, s & ~NEW));
+        }
+
         // Lock methods
-        //
-        // The value 0 represents the unlocked state.
-        // The value 1 represents the locked state.
 
-        protected boolean isHeldExclusively() {
-            return getState() != 0;
+        /**
+         * Takes the lock before running a task, and clears IDLE.
+         * Called only by the worker thread.
+         */
+        void lock() {
+            for (; ; ) {
+                int s = state;
+                if ((s & LOCKED) == 0 &&
+                        casState(s, (s | LOCKED) & ~IDLE))
+                    return;
+                Thread.yield(); // an interrupter holds it briefly
+            }
         }
 
-        protected boolean tryAcquire(int unused) {
-            if (compareAndSetState(0, 1)) {
-                setExclusiveOwnerThread(Thread.currentThread());
-                return true;
+        /**
+         * Releases the lock after a task, and marks the worker idle
+         * as markIdle does. Called only by the worker thread.
+         */
+        void unlock() {
+            for (; ; ) {
+                int s = state;
+                if (casState(s, (s & ~LOCKED) | IDLE | LISTED)) {
+                    if ((s & LISTED) == 0)
+                        idleWorkers.offer(this);
+                    return;
+                }
             }
-            return false;
         }
 
-        protected boolean tryRelease(int unused) {
-            setExclusiveOwnerThread(null);
-            setState(0);
-            return true;
+        /**
+         * Takes the lock if it is free and the worker has started.
+         * Used by threads interrupting the worker.
+         */
+        boolean tryLock() {
+            int s = state;
+            return (s & (LOCKED | NEW)) == 0 && casState(s, s | LOCKED);
+        }
+
+        /**
+         * Releases a lock taken by tryLock.
+         */
+        void release() {
+            int s;
+            do {
+                s = state;
+            } while (!casState(s, s & ~LOCKED));
+        }
+
+        boolean isLocked() {
+            return (state & (LOCKED | NEW)) != 0;
+        }
+
+        /**
+         * Marks this worker idle, adding it to idleWorkers if it is
+         * not already there. Called by the worker on entering each
+         * round of getTask, before it reads the pool state, so that
+         * a signaller that changes the state and then polls
+         * idleWorkers either finds the worker or is seen by it.
+         */
+        void markIdle() {
+            for (; ; ) {
+                int s = state;
+                if ((s & (IDLE | LISTED)) == (IDLE | LISTED))
+                    return;
+                if (casState(s, s | IDLE | LISTED)) {
+                    if ((s & LISTED) == 0)
+                        idleWorkers.offer(this);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Clears the idle bit, leaving any list entry for the next
+         * poller.
+         */
+        void markBusy() {
+            for (; ; ) {
+                int s = state;
+                if ((s & IDLE) == 0 || casState(s, s & ~IDLE))
+                    return;
+            }
         }
 
-        public void lock() {
-            acquire(1);
+        /**
+         * Clears the listed bit of an entry just polled or removed
+         * from idleWorkers, returning the state before.
+         */
+        int unlist() {
+            for (; ; ) {
+                int s = state;
+                if (casState(s, s & ~LISTED))
+                    return s;
+            }
         }
 
-        public boolean tryLock() {
-            return tryAcquire(1);
+        /**
+         * Marks this worker exited and no longer idle, returning true
+         * if it was still listed. Called once, by processWorkerExit.
+         */
+        boolean markExited() {
+            for (; ; ) {
+                int s = state;
+                if (casState(s, (s | EXITED) & ~IDLE))
+                    return (s & LISTED) != 0;
+            }
         }
 
-        public void unlock() {
-            release(1);
+        /**
+         * Interrupts the thread if it is still running the task that
+         * started at the given time. Used by watchdogs.
+         */
+        boolean interruptTask(long startTime) {
+            for (; ; ) {
+                int s = state;
+                if ((s & INTERRUPTING) == 0 &&
+                        casState(s, s | INTERRUPTING))
+                    break;
+                Thread.yield(); // another watchdog is interrupting
+            }
+            try {
+                if (taskStartTime != startTime)
+                    return false;
+                thread.interrupt();
+                return true;
+            } finally {
+                int s;
+                do {
+                    s = state;
+                } while (!casState(s, s & ~INTERRUPTING));
+            }
         }
 
-        public boolean isLocked() {
-            return isHeldExclusively();
+        /**
+         * Clears taskStartTime after a watched task, then waits out a
+         * watchdog that may have read the old value before it could
+         * interrupt. Called only by the worker thread.
+         */
+        void endTask() {
+            taskStartTime = 0L;
+            while ((state & INTERRUPTING) != 0)
+                Thread.yield();
         }
 
         void interruptIfStarted() {
             Thread t;
-            if (getState() >= 0 && (t = thread) != null && !t.isInterrupted()) {
+            if ((state & NEW) == 0 && (t = thread) != null && !t.isInterrupted()) {
                 try {
                     t.interrupt();
                 } catch (SecurityException ignore) {
@@ -685,73 +1187,258 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
-    /*
-     * Methods for setting control state
-     */
-
     /**
-     * Transitions runState to given target, or leaves it alone if
-     * already at least the given target.
-     *
-     * @param targetState the desired state, either SHUTDOWN or STOP
-     *                    (but not TIDYING or TERMINATED -- use tryTerminate for that)
+     * Wraps a task submitted to execute together with per-submission
+     * state that travels with it through the work queue: the values
+     * of the registered context carriers captured in the submitting
+     * thread, the task's sequence number in the journal, if it was
+     * journaled, and the bytes charged to the byte budget for it, if
+     * it is sized. runWorker unwraps envelopes, so hooks always
+     * see the submitted task, and so do remove, purge and the list
+     * returned by shutdownNow. Envelopes do not override equals, so
+     * they are only ever found in the queue by matching the task they
+     * wrap. An envelope run directly (by a subclass taking it from
+     * the queue) installs its context around the task and restores
+     * the running thread's own values after, and marks the task
+     * complete in the journal.
      */
-    private void advanceRunState(int targetState) {
-        for (; ; ) {
-            int c = ctl.get();
-            if (runStateAtLeast(c, targetState) ||
-                    ctl.compareAndSet(c, ctlOf(targetState, workerCountOf(c))))
-                break;
+    static final class TaskEnvelope implements Runnable {
+        private static final ThreadLocal<?>[] NO_CARRIERS = new ThreadLocal<?>[0];
+        private static final Object[] NO_CONTEXT = new Object[0];
+
+        final Runnable task;
+        final ThreadLocal<?>[] carriers;
+        final Object[] context;
+        // Set before the envelope is handed to a worker, if journaled
+        TaskJournal journal;
+        long journalSeq;
+        // Set before the envelope is handed to a worker, if charged
+        long chargedBytes;
+
+        TaskEnvelope(Runnable task, ThreadLocal<?>[] carriers, Object[] context) {
+            this.task = task;
+            this.carriers = carriers;
+            this.context = context;
         }
-    }
 
-    /**
-     * Transitions to TERMINATED state if either (SHUTDOWN and pool
-     * and queue empty) or (STOP and pool empty).  If otherwise
-     * eligible to terminate but workerCount is nonzero, interrupts an
-     * idle worker to ensure that shutdown signals propagate. This
-     * method must be called following any action that might make
-     * termination possible -- reducing worker count or removing tasks
-     * from the queue during shutdown. The method is non-private to
-     * allow access from ScheduledThreadPoolExecutor.
-     */
-    final void tryTerminate() {
-        for (; ; ) {
-            int c = ctl.get();
-            if (isRunning(c) ||
-                    runStateAtLeast(c, TIDYING) ||
-                    (runStateOf(c) == SHUTDOWN && !workQueue.isEmpty()))
-                return;
-            if (workerCountOf(c) != 0) { // Eligible to terminate
-                interruptIdleWorkers(ONLY_ONE);
-                return;
-            }
+        /**
+         * Returns an envelope for the given task, reusing it if it is
+         * one already, that marks the task complete in the given
+         * journal once run.
+         */
+        static TaskEnvelope journaled(Runnable task, TaskJournal journal,
+                                      long seq) {
+            TaskEnvelope e = (task instanceof TaskEnvelope) ? (TaskEnvelope) task :
+                    new TaskEnvelope(task, NO_CARRIERS, NO_CONTEXT);
+            e.journal = journal;
+            e.journalSeq = seq;
+            return e;
+        }
 
-            final ReentrantLock mainLock = this.mainLock;
-            mainLock.lock();
-            try {
-                if (ctl.compareAndSet(c, ctlOf(TIDYING, 0))) {
-                    try {
-                        terminated();
-                    } finally {
-                        ctl.set(ctlOf(TERMINATED, 0));
-                        termination.signalAll();
-                    }
-                    return;
-                }
-            } finally {
-                mainLock.unlock();
-            }
-            // else retry on failed CAS
+        /**
+         * Returns an envelope for the given task, reusing it if it is
+         * one already, that records the bytes charged for it.
+         */
+        static TaskEnvelope charged(Runnable task, long bytes) {
+            TaskEnvelope e = (task instanceof TaskEnvelope) ? (TaskEnvelope) task :
+                    new TaskEnvelope(task, NO_CARRIERS, NO_CONTEXT);
+            e.chargedBytes = bytes;
+            return e;
         }
-    }
 
-    /*
-     * Methods for controlling interrupts to worker threads.
-     */
+        /**
+         * Returns the bytes charged for the task and forgets them, so
+         * that they are credited back exactly once.
+         */
+        long takeCharge() {
+            long bytes = chargedBytes;
+            chargedBytes = 0L;
+            return bytes;
+        }
 
-    /**
-     * If there is a security manager, makes sure caller has
+        /**
+         * Marks the task complete in the journal, if journaled. Called
+         * once the task has started running, or once it has been
+         * rejected or taken out of the queue by remove, purge or
+         * DiscardOldestPolicy.
+         */
+        void completed() {
+            TaskJournal j = journal;
+            if (j != null) {
+                journal = null;
+                j.complete(journalSeq);
+            }
+        }
+
+        /**
+         * Installs the captured context in the current thread. Only
+         * the carriers that had a value are set; clearContext leaves
+         * the others absent.
+         */
+        @SuppressWarnings("unchecked")
+        void attach() {
+            for (int i = 0; i < carriers.length; i++) {
+                Object v = context[i];
+                if (v != null)
+                    ((ThreadLocal<Object>) carriers[i]).set(v);
+            }
+        }
+
+        /**
+         * Clears the captured context from the current thread.
+         */
+        void detach() {
+            for (int i = 0; i < carriers.length; i++) {
+                if (context[i] != null)
+                    carriers[i].remove();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public void run() {
+            Object[] saved = new Object[carriers.length];
+            for (int i = 0; i < carriers.length; i++)
+                saved[i] = carriers[i].getIfPresent();
+            clearContext(carriers);
+            attach();
+            try {
+                task.run();
+            } finally {
+                for (int i = 0; i < carriers.length; i++) {
+                    if (saved[i] != null)
+                        ((ThreadLocal<Object>) carriers[i]).set(saved[i]);
+                    else
+                        carriers[i].remove();
+                }
+                completed();
+            }
+        }
+
+        public String toString() {
+            return task.toString();
+        }
+    }
+
+    /**
+     * Returns the task submitted to execute, unwrapping any envelope.
+     */
+    static Runnable unwrap(Runnable r) {
+        return (r instanceof TaskEnvelope) ? ((TaskEnvelope) r).task : r;
+    }
+
+    /**
+     * Returns the queued envelope wrapping the given task, or null if
+     * there is none.
+     */
+    private Runnable findEnvelope(Runnable task) {
+        final BlockingQueue<Runnable> q = workQueue;
+        try {
+            for (Runnable r : q)
+                if (r instanceof TaskEnvelope && task.equals(unwrap(r)))
+                    return r;
+        } catch (ConcurrentModificationException fallThrough) {
+            for (Object r : q.toArray())
+                if (r instanceof TaskEnvelope && task.equals(unwrap((Runnable) r)))
+                    return (Runnable) r;
+        }
+        return null;
+    }
+
+    /**
+     * Accounts for a task that has been taken out of the queue and
+     * will not be run by this pool: credits its size to the byte
+     * budget and marks it complete in the journal.
+     */
+    final void retire(Runnable r) {
+        if (r instanceof TaskEnvelope) {
+            TaskEnvelope e = (TaskEnvelope) r;
+            releaseBytes(e.takeCharge());
+            e.completed();
+        }
+    }
+
+    /*
+     * Methods for setting control state
+     */
+
+    /**
+     * Transitions runState to given target, or leaves it alone if
+     * already at least the given target.
+     *
+     * @param targetState the desired state, either SHUTDOWN or STOP
+     *                    (but not TIDYING or TERMINATED -- use tryTerminate for that)
+     */
+    private void advanceRunState(long targetState) {
+        for (; ; ) {
+            long c = ctl.get();
+            if (runStateAtLeast(c, targetState))
+                break;
+            if (ctl.compareAndSet(c, withRunState(c, targetState))) {
+                ThreadPoolEvents.runStateChanged(poolId, runStateName(runStateOf(c)),
+                        runStateName(targetState), workerCountOf(c));
+                break;
+            }
+        }
+    }
+
+    /**
+     * Transitions to TERMINATED state if either (SHUTDOWN and pool
+     * and queue empty) or (STOP and pool empty).  If otherwise
+     * eligible to terminate but workerCount is nonzero, interrupts an
+     * idle worker to ensure that shutdown signals propagate. This
+     * method must be called following any action that might make
+     * termination possible -- reducing worker count or removing tasks
+     * from the queue during shutdown. The method is non-private to
+     * allow access from ScheduledThreadPoolExecutor.
+     */
+    final void tryTerminate() {
+        for (; ; ) {
+            long c = ctl.get();
+            if (isRunning(c) ||
+                    runStateAtLeast(c, TIDYING) ||
+                    (runStateOf(c) == SHUTDOWN && !workQueue.isEmpty()))
+                return;
+            if (workerCountOf(c) != 0) { // Eligible to terminate
+                interruptIdleWorkers(ONLY_ONE);
+                return;
+            }
+
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                if (!ctl.compareAndSet(c, ctlOf(TIDYING, 0)))
+                    continue; // retry on failed CAS
+                ThreadPoolEvents.runStateChanged(poolId,
+                        runStateName(runStateOf(c)), "TIDYING", 0);
+            } finally {
+                mainLock.unlock();
+            }
+            // Nothing else changes state once TIDYING, so the MBean
+            // server can be called without mainLock (see mbeanLock),
+            // and still before awaitTermination returns
+            try {
+                unregisterMBean();
+            } finally {
+                mainLock.lock();
+                try {
+                    terminated();
+                } finally {
+                    ctl.set(ctlOf(TERMINATED, 0));
+                    termination.signalAll();
+                    ThreadPoolEvents.runStateChanged(poolId, "TIDYING", "TERMINATED", 0);
+                    mainLock.unlock();
+                }
+            }
+            return;
+        }
+    }
+
+    /*
+     * Methods for controlling interrupts to worker threads.
+     */
+
+    /**
+     * If there is a security manager, makes sure caller has
      * permission to shut down threads in general (see shutdownPerm).
      * If this passes, additionally makes sure the caller is allowed
      * to interrupt each worker thread. This might not be true even if
@@ -790,7 +1477,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
     /**
      * Interrupts threads that might be waiting for tasks (as
-     * indicated by not being locked) so they can check for
+     * indicated by being listed in idleWorkers, and confirmed by not
+     * being locked) so they can check for
      * termination or configuration changes. Ignores
      * SecurityExceptions (in which case some threads may remain
      * uninterrupted).
@@ -808,24 +1496,32 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      *                waiting for a straggler task to finish.
      */
     private void interruptIdleWorkers(boolean onlyOne) {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            for (Worker w : workers) {
-                Thread t = w.thread;
-                if (!t.isInterrupted() && w.tryLock()) {
-                    try {
-                        t.interrupt();
-                    } catch (SecurityException ignore) {
-                    } finally {
-                        w.unlock();
-                    }
+        // Interrupted workers list themselves again on waking, so
+        // bound the number of polls to about the entries present at
+        // the start rather than draining until empty.
+        int polls = 2 * workerCountOf(ctl.get()) + 1;
+        Worker w;
+        while (polls > 0 && (w = idleWorkers.poll()) != null) {
+            int s = w.unlist();
+            if ((s & EXITED) != 0) {
+                if ((s & LISTED) != 0) // not swept meanwhile
+                    staleIdleEntries.decrementAndGet();
+                continue; // dropped lazily, free of the bound
+            }
+            polls--;
+            if ((s & IDLE) == 0)
+                continue; // took a task since listing
+            Thread t = w.thread;
+            if (!t.isInterrupted() && w.tryLock()) {
+                try {
+                    t.interrupt();
+                } catch (SecurityException ignore) {
+                } finally {
+                    w.release();
                 }
                 if (onlyOne)
                     break;
             }
-        } finally {
-            mainLock.unlock();
         }
     }
 
@@ -839,6 +1535,19 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
     private static final boolean ONLY_ONE = true;
 
+    /*
+     * Bits of Worker.state.
+     */
+    private static final int LOCKED = 1;
+    private static final int IDLE = 2;
+    private static final int LISTED = 4;
+    private static final int NEW = 8;
+    private static final int EXITED = 16;
+    private static final int INTERRUPTING = 32;
+
+    private static final AtomicIntegerFieldUpdater<Worker> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Worker.class, "state");
+
     /*
      * Misc utilities, most of which are also exported to
      * ScheduledThreadPoolExecutor
@@ -849,6 +1558,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Package-protected for use by ScheduledThreadPoolExecutor.
      */
     final void reject(Runnable command) {
+        rejectedTaskCount.increment();
+        ThreadPoolEvents.taskRejected(poolId, command,
+                workerCountOf(ctl.get()), workQueue);
         handler.rejectedExecution(command, this);
     }
 
@@ -867,7 +1579,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @param shutdownOK true if should return true if SHUTDOWN
      */
     final boolean isRunningOrShutdown(boolean shutdownOK) {
-        int rs = runStateOf(ctl.get());
+        long rs = runStateOf(ctl.get());
         return rs == RUNNING || (rs == SHUTDOWN && shutdownOK);
     }
 
@@ -875,7 +1587,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Drains the task queue into a new list, normally using
      * drainTo. But if the queue is a DelayQueue or any other kind of
      * queue for which poll or drainTo may fail to remove some
-     * elements, it deletes them one by one.
+     * elements, it deletes them one by one. Envelopes are replaced by
+     * the tasks they wrap; journaled tasks are left pending in the
+     * journal.
      */
     private List<Runnable> drainQueue() {
         BlockingQueue<Runnable> q = workQueue;
@@ -887,6 +1601,13 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     taskList.add(r);
             }
         }
+        for (int i = 0; i < taskList.size(); i++) {
+            Runnable r = taskList.get(i);
+            if (r instanceof TaskEnvelope) {
+                releaseBytes(((TaskEnvelope) r).takeCharge());
+                taskList.set(i, unwrap(r));
+            }
+        }
         return taskList;
     }
 
@@ -923,8 +1644,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
 
         retry:
         for (; ; ) {
-            int c = ctl.get();
-            int rs = runStateOf(c);
+            long c = ctl.get();
+            long rs = runStateOf(c);
 
             // Check if queue empty only if necessary.
             if (rs >= SHUTDOWN &&
@@ -936,7 +1657,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
             for (; ; ) {
                 int wc = workerCountOf(c);
                 if (wc >= CAPACITY ||
-                        wc >= (core ? corePoolSize : maximumPoolSize))
+                        wc >= (core ? corePoolSize :
+                                maximumPoolSize + compensationAllowance()))
                     return false;
                 if (compareAndIncrementWorkerCount(c))
                     // 在这儿调用break retry相当于是break到上一个retry所在位置，相较一般break而言
@@ -963,7 +1685,7 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                     // Recheck while holding lock.
                     // Back out on ThreadFactory failure or if
                     // shut down before lock acquired.
-                    int rs = runStateOf(ctl.get());
+                    long rs = runStateOf(ctl.get());
                     // rs < SHUTDOWN表示是RUNNING状态；
                     // 如果rs是RUNNING状态或者rs是SHUTDOWN状态并且firstTask为null，向线程池中添加线程。
                     // 因为在SHUTDOWN时不会再添加新的任务，但还是会执行workQueue中的任务
@@ -978,6 +1700,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                         int s = workers.size();
                         if (s > largestPoolSize)
                             largestPoolSize = s;
+                        Retirement r = retirement;
+                        if (r != null)
+                            r.sample(System.nanoTime(), s);
                         workerAdded = true;
                     }
                 } finally {
@@ -986,6 +1711,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                 if (workerAdded) {
                     t.start();
                     workerStarted = true;
+                    if (registerMBeans && !mbeanAutoRegistered)
+                        autoRegisterMBean();
                 }
             }
         } finally {
@@ -1032,6 +1759,8 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         if (completedAbruptly) // If abrupt, then workerCount wasn't adjusted
             decrementWorkerCount();
 
+        ThreadPoolEvents.workerExited(poolId, completedAbruptly, w.completedTasks);
+
         final ReentrantLock mainLock = this.mainLock;
         mainLock.lock();
         try {
@@ -1040,10 +1769,15 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         } finally {
             mainLock.unlock();
         }
+        // A worker may leave getTask while still listed; its entry is
+        // left for a poller, unless stale entries have piled up
+        if (w.markExited() &&
+                staleIdleEntries.incrementAndGet() > workerCountOf(ctl.get()))
+            sweepIdleWorkers();
 
         tryTerminate();
 
-        int c = ctl.get();
+        long c = ctl.get();
         if (runStateLessThan(c, STOP)) {
             if (!completedAbruptly) {
                 int min = allowCoreThreadTimeOut ? 0 : corePoolSize;
@@ -1056,6 +1790,24 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * Removes the entries of exited workers from idleWorkers. Called
+     * only once there are more of them than live workers, so the
+     * scan costs O(1) per exit amortized.
+     */
+    private void sweepIdleWorkers() {
+        for (Iterator<Worker> it = idleWorkers.iterator(); it.hasNext(); ) {
+            Worker w = it.next();
+            if ((w.state & EXITED) != 0) {
+                it.remove();
+                // a poller may have taken it meanwhile; only the
+                // one that clears LISTED accounts for it
+                if ((w.unlist() & LISTED) != 0)
+                    staleIdleEntries.decrementAndGet();
+            }
+        }
+    }
+
     /**
      * Performs blocking or timed wait for a task, depending on
      * current configuration settings, or returns null if this worker
@@ -1073,28 +1825,46 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return task, or null if the worker must exit, in which case
      * workerCount is decremented
      */
-    private Runnable getTask() {
+    private Runnable getTask(Worker w) {
         boolean timedOut = false; // Did the last poll() time out?
 
         for (; ; ) {
-            int c = ctl.get();
-            int rs = runStateOf(c);
+            w.markIdle();
+            long c = ctl.get();
+            long rs = runStateOf(c);
 
             // Check if queue empty only if necessary.
             if (rs >= SHUTDOWN && (rs >= STOP || workQueue.isEmpty())) {
                 decrementWorkerCount();
+                w.markBusy();
                 return null;
             }
 
             int wc = workerCountOf(c);
 
-            // Are workers subject to culling?
-            boolean timed = allowCoreThreadTimeOut || wc > corePoolSize;
-
-            if ((wc > maximumPoolSize || (timed && timedOut))
-                    && (wc > 1 || workQueue.isEmpty())) {
-                if (compareAndDecrementWorkerCount(c))
+            // Are workers subject to culling? Workers blocked in
+            // managedBlock don't count, so compensation workers stay
+            // while the workers they stand in for are blocked.
+            boolean timed = allowCoreThreadTimeOut ||
+                    wc - blockedWorkers.get() > corePoolSize;
+
+            // A timed-out worker that the retirement policy keeps
+            // waits for another keep-alive period.
+            boolean excess = wc > maximumPoolSize + compensationAllowance();
+            if ((excess || (timed && timedOut))
+                    && (wc > 1 || workQueue.isEmpty())
+                    && (excess || mayRetire(wc))) {
+                if (excess ? compareAndDecrementWorkerCount(c)
+                        : decrementForRetirement(c)) {
+                    w.markBusy();
                     return null;
+                }
+                continue;
+            }
+
+            if (isPaused(c)) {
+                awaitResume();
+                timedOut = false;
                 continue;
             }
 
@@ -1102,8 +1872,20 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                 Runnable r = timed ?
                         workQueue.poll(keepAliveTime, TimeUnit.NANOSECONDS) :
                         workQueue.take();
-                if (r != null)
+                if (r != null) {
+                    ThreadPoolEvents.taskDequeued(poolId, r);
+                    // Paused while waiting: hold the task until resumed
+                    if (isPaused(ctl.get()))
+                        awaitResume();
+                    // Rate limited: reserve a token only now that there
+                    // is a task to spend it on. Idle workers reserving
+                    // ahead would burn tokens whenever they found the
+                    // queue empty, as only the latest reservation can
+                    // be given back.
+                    if (dispatchRate != null)
+                        awaitDispatchToken();
                     return r;
+                }
                 timedOut = true;
             } catch (InterruptedException retry) {
                 timedOut = false;
@@ -1140,7 +1922,10 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Because we cannot rethrow Throwables within Runnable.run, we
      * wrap them within Errors on the way out (to the thread's
      * UncaughtExceptionHandler).  Any thrown exception also
-     * conservatively causes thread to die.
+     * conservatively causes thread to die, unless workers are kept
+     * on task failure (see setKeepWorkersOnTaskFailure), in which
+     * case the exception is passed to the handler directly and the
+     * loop continues.
      * <p>
      * 5. After task.run completes, we call afterExecute, which may
      * also throw an exception, which will also cause thread to
@@ -1158,11 +1943,25 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         Thread wt = Thread.currentThread();
         Runnable task = w.firstTask;
         w.firstTask = null;
-        w.unlock(); // allow interrupts
+        w.start(); // allow interrupts
         boolean completedAbruptly = true;
+        ThreadPoolEvents.workerStarted(poolId, workerCountOf(ctl.get()));
+        currentWorker.set(w);
+        Object threadLocals = null;  // baseline for scrubbing
+        boolean captured = false;
         try {
-            while (task != null || (task = getTask()) != null) {
+            if (task != null && isPaused(ctl.get()))
+                awaitResume(); // started with a task, but paused since
+            if (task != null && dispatchRate != null)
+                awaitDispatchToken();
+            while (task != null || (task = getTask(w)) != null) {
+                TaskEnvelope envelope = null;
+                if (task instanceof TaskEnvelope) {
+                    envelope = (TaskEnvelope) task;
+                    task = envelope.task;
+                }
                 w.lock();
+                activeWorkers.increment();
                 // If pool is stopping, ensure thread is interrupted;
                 // if not, ensure thread is not interrupted.  This
                 // requires a recheck in second case to deal with
@@ -1172,31 +1971,74 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
                                 runStateAtLeast(ctl.get(), STOP))) &&
                         !wt.isInterrupted())
                     wt.interrupt();
+                boolean scrub = scrubThreadLocals;
+                if (scrub && !captured) {
+                    threadLocals = ThreadLocal.captureThreadLocals(currentWorker);
+                    captured = true;
+                }
                 try {
+                    ThreadLocal<?>[] carriers = contextCarriers;
+                    if (carriers != null)
+                        clearContext(carriers);
+                    if (envelope != null)
+                        envelope.attach();
                     beforeExecute(wt, task);
                     Throwable thrown = null;
+                    ThreadPoolEvents.TaskExecutionEvent event =
+                            ThreadPoolEvents.taskStarted(poolId, task);
+                    LatencyHistogram h = latencies;
+                    boolean watched = taskStartWatchers.get() > 0;
+                    long startTime = (h != null || watched) ? System.nanoTime() : 0L;
+                    if (watched)
+                        w.taskStartTime = (startTime != 0L) ? startTime : 1L;
+                    boolean survive = keepWorkersOnTaskFailure;
                     try {
                         task.run();
                     } catch (RuntimeException x) {
                         thrown = x;
-                        throw x;
+                        if (!survive)
+                            throw x;
                     } catch (Error x) {
                         thrown = x;
-                        throw x;
+                        if (!survive || x instanceof VirtualMachineError ||
+                                x instanceof ThreadDeath)
+                            throw x;
                     } catch (Throwable x) {
                         thrown = x;
-                        throw new Error(x);
+                        if (!survive)
+                            throw new Error(x);
                     } finally {
+                        // Only once the task has run: if beforeExecute
+                        // throws, it stays pending and is run again
+                        // after a restart
+                        if (envelope != null)
+                            envelope.completed();
+                        if (watched)
+                            w.endTask();
+                        if (h != null)
+                            h.record(System.nanoTime() - startTime);
+                        ThreadPoolEvents.taskEnded(event, thrown);
                         afterExecute(task, thrown);
                     }
+                    if (thrown != null) // survived: report as the thread would
+                        reportTaskFailure(wt, thrown);
                 } finally {
+                    if (envelope != null)
+                        envelope.detach();
+                    if (scrub)
+                        ThreadLocal.resetThreadLocals(threadLocals, currentWorker);
+                    if (envelope != null)
+                        releaseBytes(envelope.takeCharge());
                     task = null;
                     w.completedTasks++;
+                    completions.increment();
+                    activeWorkers.decrement();
                     w.unlock();
                 }
             }
             completedAbruptly = false;
         } finally {
+            currentWorker.remove();
             // 执行垃圾回收
             processWorkerExit(w, completedAbruptly);
         }
@@ -1392,128 +2234,1237 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * 3. If we cannot queue task, then we try to add a new
          * thread.  If it fails, we know we are shut down or saturated
          * and so reject the task.
+         *
+         * Before all that, if context carriers are registered and
+         * any of them has a value in this thread, the task is
+         * wrapped so the values travel with it. The handler is still
+         * given the unwrapped command.
+         *
+         * And before that, a sized task is charged against the byte
+         * budget, which may block or reject (see acquireBytes). The
+         * charge is recorded in an envelope, and exactly that amount
+         * is credited back when the task completes or leaves the
+         * queue, or below if the task is rejected after all, however
+         * the task's estimate has changed since.
+         *
+         * Finally, if a journal is set and the task is serializable,
+         * it is appended to the journal, and the envelope records its
+         * sequence number so that runWorker can mark it complete.
          */
-        int c = ctl.get();
+        long bytes = sizeOf(command);
+        if (bytes != 0L && !acquireBytes(bytes)) {
+            reject(command);
+            return;
+        }
+        Runnable task = command;
+        ThreadLocal<?>[] carriers = contextCarriers;
+        if (carriers != null)
+            task = captureContext(command, carriers);
+        TaskJournal j = journal;
+        if (j != null && command instanceof Serializable) {
+            try {
+                task = TaskEnvelope.journaled(task, j, j.append(command));
+            } catch (IOException ex) {
+                releaseBytes(bytes);
+                throw new RejectedExecutionException("Task " + command.toString() +
+                        " could not be journaled", ex);
+            }
+        }
+        dispatch(command, task, bytes);
+    }
+
+    /**
+     * Runs or queues a prepared task: the three steps of execute.
+     *
+     * @param command the task as submitted, for events and the handler
+     * @param task    the task to run or queue, possibly an envelope
+     * @param bytes   the size charged for the task
+     */
+    private void dispatch(Runnable command, Runnable task, long bytes) {
+        if (bytes != 0L)
+            task = TaskEnvelope.charged(task, bytes);
+        if (task != command && !tasksWrapped)
+            tasksWrapped = true;
+        long c = ctl.get();
         if (workerCountOf(c) < corePoolSize) {
-            if (addWorker(command, true))
+            if (addWorker(task, true))
                 return;
             c = ctl.get();
         }
-        if (isRunning(c) && workQueue.offer(command)) {
-            int recheck = ctl.get();
-            if (!isRunning(recheck) && remove(command))
+        if (isRunning(c) && workQueue.offer(task)) {
+            ThreadPoolEvents.taskEnqueued(poolId, command, workQueue);
+            long recheck = ctl.get();
+            // task is what was queued, so it is found by identity
+            // even if it is an envelope
+            if (!isRunning(recheck) && remove(task))
                 reject(command);
             else if (workerCountOf(recheck) == 0)
                 addWorker(null, false);
-        } else if (!addWorker(command, false))
+        } else if (!addWorker(task, false)) {
+            releaseBytes(bytes);
+            if (task instanceof TaskEnvelope)
+                ((TaskEnvelope) task).completed();
             reject(command);
+        }
     }
 
     /**
-     * Initiates an orderly shutdown in which previously submitted
-     * tasks are executed, but no new tasks will be accepted.
-     * Invocation has no additional effect if already shut down.
-     *
-     * <p>This method does not wait for previously submitted tasks to
-     * complete execution.  Use {@link #awaitTermination awaitTermination}
-     * to do that.
-     *
-     * @throws SecurityException {@inheritDoc}
+     * Captures the current thread's values of the given carriers,
+     * returning the command itself if none has a value. Carriers
+     * without a value are not initialized.
      */
-    public void shutdown() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            checkShutdownAccess();
-            advanceRunState(SHUTDOWN);
-            interruptIdleWorkers();
-            onShutdown(); // hook for ScheduledThreadPoolExecutor
-        } finally {
-            mainLock.unlock();
+    private static Runnable captureContext(Runnable command,
+                                           ThreadLocal<?>[] carriers) {
+        Object[] context = null;
+        for (int i = 0; i < carriers.length; i++) {
+            Object v = carriers[i].getIfPresent();
+            if (v != null) {
+                if (context == null)
+                    context = new Object[carriers.length];
+                context[i] = v;
+            }
         }
-        tryTerminate();
+        return (context == null) ? command :
+                new TaskEnvelope(command, carriers, context);
     }
 
     /**
-     * Attempts to stop all actively executing tasks, halts the
-     * processing of waiting tasks, and returns a list of the tasks
-     * that were awaiting execution. These tasks are drained (removed)
-     * from the task queue upon return from this method.
-     *
-     * <p>This method does not wait for actively executing tasks to
-     * terminate.  Use {@link #awaitTermination awaitTermination} to
-     * do that.
-     *
-     * <p>There are no guarantees beyond best-effort attempts to stop
-     * processing actively executing tasks.  This implementation
-     * cancels tasks via {@link Thread#interrupt}, so any task that
-     * fails to respond to interrupts may never terminate.
-     *
-     * @throws SecurityException {@inheritDoc}
+     * Removes the current thread's values of the given carriers, so
+     * that a task whose submitter had no value for one does not see
+     * a value left behind by an earlier task.
      */
-    public List<Runnable> shutdownNow() {
-        List<Runnable> tasks;
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            checkShutdownAccess();
-            advanceRunState(STOP);
-            interruptWorkers();
-            tasks = drainQueue();
-        } finally {
-            mainLock.unlock();
-        }
-        tryTerminate();
-        return tasks;
+    private static void clearContext(ThreadLocal<?>[] carriers) {
+        for (ThreadLocal<?> t : carriers)
+            t.remove();
     }
 
-    public boolean isShutdown() {
-        return !isRunning(ctl.get());
+    /**
+     * Returns the bytes charged to the byte budget for a task as
+     * queued or run, or zero if none were.
+     */
+    static long chargeOf(Runnable r) {
+        return (r instanceof TaskEnvelope) ? ((TaskEnvelope) r).chargedBytes : 0L;
     }
 
     /**
-     * Returns true if this executor is in the process of terminating
-     * after {@link #shutdown} or {@link #shutdownNow} but has not
-     * completely terminated.  This method may be useful for
-     * debugging. A return of {@code true} reported a sufficient
-     * period after shutdown may indicate that submitted tasks have
-     * ignored or suppressed interruption, causing this executor not
-     * to properly terminate.
-     *
-     * @return {@code true} if terminating but not yet terminated
+     * Returns the estimated size of a task as submitted, or zero if
+     * it is not a SizedTask. Asked once, at admission: the amount
+     * charged is what is credited back (see chargeOf).
      */
-    public boolean isTerminating() {
-        int c = ctl.get();
-        return !isRunning(c) && runStateLessThan(c, TERMINATED);
+    static long sizeOf(Runnable r) {
+        r = unwrap(r);
+        if (!(r instanceof SizedTask))
+            return 0L;
+        long bytes = ((SizedTask) r).estimatedBytes();
+        return (bytes > 0L) ? bytes : 0L;
     }
 
-    public boolean isTerminated() {
-        return runStateAtLeast(ctl.get(), TERMINATED);
+    /**
+     * Returns true if a task of the given size would currently be
+     * accepted under the byte budget. A task larger than the whole
+     * budget is accepted when nothing else is charged, so that it
+     * runs alone rather than never.
+     */
+    final boolean fitsByteBudget(long bytes) {
+        long used = budgetedBytes.get();
+        return used == 0L || bytes <= byteBudget - used;
     }
 
-    public boolean awaitTermination(long timeout, TimeUnit unit)
-            throws InterruptedException {
-        long nanos = unit.toNanos(timeout);
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            for (; ; ) {
-                if (runStateAtLeast(ctl.get(), TERMINATED))
+    /**
+     * Charges a task of the given size against the byte budget. If
+     * it does not fit, returns false under BudgetPolicy.REJECT;
+     * under BudgetPolicy.BLOCK waits until it fits, and returns false
+     * only if the pool is shut down or the caller is interrupted
+     * while waiting, leaving the interrupt status set.
+     */
+    private boolean acquireBytes(long bytes) {
+        for (; ; ) {
+            long used = budgetedBytes.get();
+            if (used == 0L || bytes <= byteBudget - used) {
+                if (budgetedBytes.compareAndSet(used, used + bytes))
                     return true;
-                if (nanos <= 0)
-                    return false;
-                nanos = termination.awaitNanos(nanos);
+                continue;
+            }
+            if (budgetPolicy != BudgetPolicy.BLOCK || !isRunning(ctl.get()))
+                return false;
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                // Publish before rechecking, so that releaseBytes
+                // either sees a waiter or we see its release.
+                budgetWaiters++;
+                try {
+                    while (isRunning(ctl.get()) && !fitsByteBudget(bytes))
+                        budgetAvailable.await();
+                } finally {
+                    budgetWaiters--;
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                mainLock.unlock();
             }
-        } finally {
-            mainLock.unlock();
         }
     }
 
     /**
-     * Invokes {@code shutdown} when this executor is no longer
-     * referenced and it has no threads.
+     * Charges the given number of bytes to the byte budget whether or
+     * not they fit, for a task accepted by another pool that this
+     * pool's worker is to run and credit back: used by
+     * ShardedExecutor when a worker steals a task.
      */
-    protected void finalize() {
+    final void chargeBytes(long bytes) {
+        if (bytes != 0L)
+            budgetedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Credits the given number of bytes back to the byte budget,
+     * waking threads blocked in execute if there are any.
+     */
+    final void releaseBytes(long bytes) {
+        if (bytes == 0L)
+            return;
+        budgetedBytes.addAndGet(-bytes);
+        if (budgetWaiters > 0) {
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                budgetAvailable.signalAll();
+            } finally {
+                mainLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns a {@code FutureTask} that is also a {@link SizedTask}
+     * if the given runnable is one, so that tasks entered using
+     * {@code submit} are charged against the byte budget too.
+     */
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+        if (runnable instanceof SizedTask)
+            return new SizedFutureTask<T>(runnable, value,
+                    ((SizedTask) runnable).estimatedBytes());
+        return super.newTaskFor(runnable, value);
+    }
+
+    /**
+     * Returns a {@code FutureTask} that is also a {@link SizedTask}
+     * if the given callable is one.
+     */
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+        if (callable instanceof SizedTask)
+            return new SizedFutureTask<T>(callable,
+                    ((SizedTask) callable).estimatedBytes());
+        return super.newTaskFor(callable);
+    }
+
+    /**
+     * A FutureTask carrying the estimated size of the task it wraps,
+     * read once when the task is submitted.
+     */
+    private static final class SizedFutureTask<V> extends FutureTask<V>
+            implements SizedTask {
+        private final long bytes;
+
+        SizedFutureTask(Callable<V> callable, long bytes) {
+            super(callable);
+            this.bytes = bytes;
+        }
+
+        SizedFutureTask(Runnable runnable, V result, long bytes) {
+            super(runnable, result);
+            this.bytes = bytes;
+        }
+
+        public long estimatedBytes() {
+            return bytes;
+        }
+    }
+
+    /**
+     * Sets the maximum total estimated size of the {@link SizedTask}s
+     * that may be queued or running at once. Every task accepted by
+     * {@link #execute} is charged its {@link SizedTask#estimatedBytes}
+     * until it completes, or until it leaves the queue through
+     * {@link #remove}, {@link #purge}, {@link #shutdownNow} or
+     * {@link DiscardOldestPolicy}. A task that does not fit is handled
+     * as the {@linkplain #setBudgetPolicy budget policy} says. A task
+     * larger than the whole budget is accepted only when no other
+     * sized task is charged. Tasks that are not sized are never held
+     * back. Lowering the budget does not affect tasks already
+     * accepted.
+     *
+     * <p>Tasks taken out of the queue directly, through
+     * {@link #getQueue}, are not credited back.
+     *
+     * @param maxBytes the budget in bytes, or {@code Long.MAX_VALUE}
+     *                 (the default) for no budget
+     * @throws IllegalArgumentException if {@code maxBytes <= 0}
+     * @see #getBudgetedBytes
+     */
+    public void setByteBudget(long maxBytes) {
+        if (maxBytes <= 0L)
+            throw new IllegalArgumentException();
+        long delta = maxBytes - this.byteBudget;
+        this.byteBudget = maxBytes;
+        if (delta > 0L && budgetWaiters > 0) {
+            final ReentrantLock mainLock = this.mainLock;
+            mainLock.lock();
+            try {
+                budgetAvailable.signalAll();
+            } finally {
+                mainLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns the byte budget.
+     *
+     * @return the budget in bytes, {@code Long.MAX_VALUE} if none
+     * @see #setByteBudget
+     */
+    public long getByteBudget() {
+        return byteBudget;
+    }
+
+    /**
+     * Sets what {@link #execute} does with a sized task that does not
+     * fit in the byte budget. Under {@link BudgetPolicy#REJECT} (the
+     * default) the task goes to the rejected execution handler, so
+     * for example a {@link CallerRunsPolicy} degrades to running it
+     * in the submitting thread. Under {@link BudgetPolicy#BLOCK} the
+     * submitting thread waits for the budget instead.
+     *
+     * @param policy the policy
+     * @throws NullPointerException if policy is null
+     */
+    public void setBudgetPolicy(BudgetPolicy policy) {
+        if (policy == null)
+            throw new NullPointerException();
+        this.budgetPolicy = policy;
+    }
+
+    /**
+     * Returns the policy applied to sized tasks that do not fit in
+     * the byte budget.
+     *
+     * @return the policy
+     * @see #setBudgetPolicy
+     */
+    public BudgetPolicy getBudgetPolicy() {
+        return budgetPolicy;
+    }
+
+    /**
+     * Returns the total estimated size of the sized tasks that are
+     * currently queued or running. This is tracked whether or not a
+     * byte budget is set.
+     *
+     * @return the number of bytes charged
+     */
+    public long getBudgetedBytes() {
+        return budgetedBytes.get();
+    }
+
+    /*
+     * Bulk operations. A range is split into a fixed number of
+     * chunks, a few per participant, which participants claim by
+     * incrementing a shared counter. All helpers are the same
+     * RangeTask instance, so a range costs one queue entry per
+     * helper rather than one per element or chunk, and the caller
+     * waits only on the count of unfinished chunks reaching zero.
+     */
+
+    /**
+     * Number of chunks per participant. More chunks balance uneven
+     * element costs better; fewer claim less often.
+     */
+    private static final int CHUNKS_PER_PARTICIPANT = 4;
+
+    /**
+     * Performs {@code body.accept(i)} for each {@code i} from
+     * {@code from} (inclusive) to {@code to} (exclusive), in
+     * parallel, and returns when all have completed. The range is
+     * split into chunks sized to the number of workers; the calling
+     * thread runs chunks too, so the call makes progress even if all
+     * workers are busy, and may be made from within a task of this
+     * pool. Only one queue entry is used per helping worker, and
+     * entries still queued when the caller runs out of chunks are
+     * removed.
+     *
+     * <p>If an invocation of {@code body} throws, chunks not yet
+     * started are skipped, and the first exception is rethrown once
+     * the chunks already started have completed; a checked exception
+     * thrown despite not being declared is rethrown wrapped in an
+     * {@link UndeclaredThrowableException}. The order in which
+     * elements are processed is unspecified. Thread-locals registered
+     * with {@link #addContextCarrier} are not propagated to helpers.
+     *
+     * @param from the first index, inclusive
+     * @param to   the last index, exclusive
+     * @param body the operation to perform for each index
+     * @throws NullPointerException if body is null
+     */
+    public void parallelFor(int from, int to, final IntConsumer body) {
+        if (body == null)
+            throw new NullPointerException();
+        if (from >= to)
+            return;
+        runRange(new RangeTask(from, to, participants(from, to), false) {
+            Object runChunk(int lo, int hi) {
+                for (int i = lo; i < hi; i++)
+                    body.accept(i);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Maps each index from {@code from} (inclusive) to {@code to}
+     * (exclusive) using {@code mapper} and combines the results using
+     * {@code reducer}, in parallel, splitting and running the range as
+     * {@link #parallelFor} does. The results of each chunk are
+     * combined in index order and the chunk results are then combined
+     * in chunk order, so the reducer need be associative but not
+     * commutative.
+     *
+     * @param from     the first index, inclusive
+     * @param to       the last index, exclusive
+     * @param identity the result for an empty range, and the left
+     *                 operand of the first combination
+     * @param mapper   maps an index to a result
+     * @param reducer  combines two results
+     * @param <R>      the type of the result
+     * @return the combined result
+     * @throws NullPointerException if mapper or reducer is null
+     */
+    public <R> R parallelReduce(int from, int to, R identity,
+                                final IntFunction<? extends R> mapper,
+                                final BinaryOperator<R> reducer) {
+        if (mapper == null || reducer == null)
+            throw new NullPointerException();
+        if (from >= to)
+            return identity;
+        RangeTask range = new RangeTask(from, to, participants(from, to), true) {
+            Object runChunk(int lo, int hi) {
+                R acc = mapper.apply(lo);
+                for (int i = lo + 1; i < hi; i++)
+                    acc = reducer.apply(acc, mapper.apply(i));
+                return acc;
+            }
+        };
+        runRange(range);
+        R result = identity;
+        for (Object p : range.results) {
+            @SuppressWarnings("unchecked") R r = (R) p;
+            result = reducer.apply(result, r);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of threads, including the caller, that
+     * should work on the given range.
+     */
+    private int participants(int from, int to) {
+        int workers = Math.max(corePoolSize, workerCountOf(ctl.get()));
+        workers = Math.min(workers, maximumPoolSize);
+        return (int) Math.min((long) to - from, workers + 1L);
+    }
+
+    /**
+     * Queues helpers for the range, runs chunks in the calling
+     * thread until none are left, removes the helpers that have not
+     * started, and waits for the chunks claimed by those that have.
+     */
+    private void runRange(RangeTask range) {
+        int helpers = range.participants - 1;
+        int queued = 0;
+        while (queued < helpers && offerHelper(range))
+            ++queued;
+        range.run();
+        while (queued > 0 && workQueue.remove(range))
+            --queued;
+        boolean interrupted = false;
+        while (range.pending.get() != 0) {
+            LockSupport.park(range);
+            if (Thread.interrupted())
+                interrupted = true;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        Throwable ex = range.failure.get();
+        if (ex instanceof RuntimeException)
+            throw (RuntimeException) ex;
+        if (ex instanceof Error)
+            throw (Error) ex;
+        if (ex != null)
+            throw new UndeclaredThrowableException(ex);
+    }
+
+    /**
+     * Hands a helper to the pool as execute would, except that a
+     * helper that cannot be queued or given its own thread is simply
+     * not used, rather than passed to the rejected execution
+     * handler: the caller will run its chunks instead. Also used for
+     * the backup copies of hedged calls, which are optional too.
+     */
+    private boolean offerHelper(Runnable helper) {
+        if (workerCountOf(ctl.get()) < corePoolSize && addWorker(helper, true))
+            return true;
+        if (isRunning(ctl.get()) && workQueue.offer(helper)) {
+            if (workerCountOf(ctl.get()) == 0)
+                addWorker(null, false);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Hands a task to the pool as execute would, except that a task
+     * the pool cannot queue or give a thread is not passed to the
+     * rejected execution handler: returns false instead. Used by
+     * KeyAffinityExecutor, whose lanes must be neither discarded nor
+     * run inside the handler.
+     */
+    final boolean tryExecute(Runnable task) {
+        return offerHelper(task) || addWorker(task, false);
+    }
+
+    /**
+     * A range split into chunks, run by any number of threads at
+     * once. Each run claims chunks until none are left, storing the
+     * result of each chunk if results are collected. The thread that
+     * completes the last chunk unparks the caller.
+     */
+    private abstract static class RangeTask implements Runnable {
+        final int from;
+        final int to;
+        final int participants;
+        final int chunks;
+        final int chunkSize;
+        final Object[] results;
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicInteger pending;
+        final AtomicReference<Throwable> failure =
+                new AtomicReference<Throwable>();
+
+        RangeTask(int from, int to, int participants, boolean collect) {
+            long size = (long) to - from;
+            long n = Math.min(size, (long) participants * CHUNKS_PER_PARTICIPANT);
+            this.from = from;
+            this.to = to;
+            this.participants = participants;
+            this.chunkSize = (int) ((size + n - 1) / n);
+            this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            this.pending = new AtomicInteger(chunks);
+            this.results = collect ? new Object[chunks] : null;
+        }
+
+        abstract Object runChunk(int lo, int hi);
+
+        public void run() {
+            int c;
+            while ((c = nextChunk.getAndIncrement()) < chunks) {
+                try {
+                    if (failure.get() == null) {
+                        long lo = from + (long) c * chunkSize;
+                        Object r = runChunk((int) lo, (int) Math.min(lo + chunkSize, to));
+                        if (results != null)
+                            results[c] = r;
+                    }
+                } catch (Throwable ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    if (pending.decrementAndGet() == 0)
+                        LockSupport.unpark(caller);
+                }
+            }
+        }
+    }
+
+    /*
+     * Hedged execution. The primary attempt is a FutureTask whose
+     * done() completes the shared CompletableFuture. When the primary
+     * starts running, it sets a one-shot timer on a shared daemon
+     * scheduler, so that the delay, like the latency percentile it is
+     * usually taken from, measures run time and not time spent in the
+     * queue. If the result is still incomplete when the timer fires
+     * and nothing is waiting in the queue, a backup attempt is handed
+     * to the pool, without the rejected execution handler, which must
+     * not run on the timer thread. Completing the result in any way
+     * cancels the timer and every unfinished attempt.
+     */
+
+    /**
+     * Number of latency samples needed before hedge() hedges.
+     */
+    private static final long HEDGE_MIN_SAMPLES = 100L;
+
+    /**
+     * Percentile of task latency after which hedge() runs a backup.
+     */
+    private static final double HEDGE_PERCENTILE = 95.0;
+
+    /**
+     * Holder for the timer shared by all pools' hedged calls, created
+     * on first use.
+     */
+    private static final class HedgeTimer {
+        static final ScheduledThreadPoolExecutor TIMER;
+
+        static {
+            TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ThreadPoolExecutor-hedge-timer");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            TIMER.setRemoveOnCancelPolicy(true);
+        }
+    }
+
+    /**
+     * Runs an idempotent task, and a second copy of it if the first
+     * has not completed within the pool's 95th percentile task run
+     * time of starting to run, completing the returned future with
+     * whichever succeeds first. The other copy is then cancelled:
+     * removed from the queue if it has not started, interrupted if it
+     * has.
+     *
+     * <p>The percentile is taken from this pool's latency tracking
+     * (see {@link #setLatencyTracking}), which this method enables if
+     * it is not already, over all tasks the pool has run. Until at
+     * least 100 tasks have been recorded, the task runs without a
+     * backup. No backup is started while other tasks are waiting in
+     * the queue, where it would only wait behind them, nor if the
+     * pool could only reject it. A failure completes the future
+     * exceptionally only once no other copy is pending, so a failing
+     * primary fails fast if the backup has not been started.
+     * Cancelling the returned future cancels both copies.
+     *
+     * @param task the task, which must be safe to run twice
+     * @param <T>  the type of the task's result
+     * @return a future for the first successful result
+     * @throws RejectedExecutionException if the primary copy cannot be
+     *                                    scheduled for execution
+     * @throws NullPointerException       if task is null
+     */
+    public <T> CompletableFuture<T> hedge(Callable<T> task) {
+        LatencyHistogram h = latencies;
+        if (h == null) {
+            setLatencyTracking(true);
+            h = latencies;
+        }
+        long delay = (h != null && h.count() >= HEDGE_MIN_SAMPLES)
+                ? h.percentile(HEDGE_PERCENTILE) : -1L;
+        return hedge(task, delay);
+    }
+
+    /**
+     * Runs an idempotent task, and a second copy of it if the first
+     * has not completed within the given delay of starting to run, as
+     * {@link #hedge(Callable)} does with a delay learned from the
+     * pool's task latencies.
+     *
+     * @param task  the task, which must be safe to run twice
+     * @param delay the time after the primary copy starts at which the
+     *              backup copy is started
+     * @param unit  the time unit of the delay argument
+     * @param <T>   the type of the task's result
+     * @return a future for the first successful result
+     * @throws IllegalArgumentException   if delay is negative
+     * @throws RejectedExecutionException if the primary copy cannot be
+     *                                    scheduled for execution
+     * @throws NullPointerException       if task or unit is null
+     */
+    public <T> CompletableFuture<T> hedge(Callable<T> task, long delay,
+                                          TimeUnit unit) {
+        if (delay < 0L)
+            throw new IllegalArgumentException();
+        return hedge(task, unit.toNanos(delay));
+    }
+
+    /**
+     * Runs a hedged call; a negative delay means no backup.
+     */
+    private <T> CompletableFuture<T> hedge(Callable<T> task, long delayNanos) {
+        if (task == null)
+            throw new NullPointerException();
+        HedgedCall<T> call = new HedgedCall<T>(this, task, delayNanos);
+        execute(call.primary);
+        return call.result;
+    }
+
+    /**
+     * The state of one hedged call.
+     */
+    private static final class HedgedCall<T> {
+        final ThreadPoolExecutor pool;
+        final Callable<T> task;
+        final long delayNanos;
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Attempt primary;
+        volatile Attempt backup;
+        volatile ScheduledFuture<?> timer;
+
+        /**
+         * Attempts started and not failed.
+         */
+        final AtomicInteger live = new AtomicInteger(1);
+
+        /**
+         * The latest failure of an attempt, reported if the backup
+         * cannot be started after the primary has failed.
+         */
+        volatile Throwable failure;
+
+        HedgedCall(ThreadPoolExecutor pool, Callable<T> task, long delayNanos) {
+            this.pool = pool;
+            this.task = task;
+            this.delayNanos = delayNanos;
+            this.primary = new Attempt();
+            result.whenComplete(new BiConsumer<T, Throwable>() {
+                public void accept(T value, Throwable ex) {
+                    ScheduledFuture<?> t = timer;
+                    if (t != null)
+                        t.cancel(false);
+                    cancel(primary);
+                    cancel(backup);
+                }
+            });
+        }
+
+        void cancel(Attempt a) {
+            if (a != null && !a.isDone()) {
+                pool.remove(a);
+                a.cancel(true);
+            }
+        }
+
+        /**
+         * Sets the backup timer, if hedging. Called by the primary
+         * attempt as it starts running.
+         */
+        void startTimer() {
+            if (delayNanos < 0L || result.isDone())
+                return;
+            ScheduledFuture<?> t = HedgeTimer.TIMER.schedule(new Runnable() {
+                public void run() {
+                    launchBackup();
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+            timer = t;
+            // the result may have completed before timer was set
+            if (result.isDone())
+                t.cancel(false);
+        }
+
+        /**
+         * Hands a backup attempt to the pool. Called on the timer
+         * thread.
+         */
+        void launchBackup() {
+            if (result.isDone() || !pool.workQueue.isEmpty())
+                return;
+            live.incrementAndGet();
+            Attempt a = new Attempt();
+            backup = a;
+            if (result.isDone()) {
+                // whenComplete may have run before backup was set
+                a.cancel(false);
+                return;
+            }
+            if (!pool.offerHelper(a) && !pool.addWorker(a, false)) {
+                backup = null;
+                if (live.decrementAndGet() == 0) {
+                    Throwable ex = failure;
+                    result.completeExceptionally((ex != null) ? ex :
+                            new RejectedExecutionException("backup not started"));
+                }
+            }
+        }
+
+        final class Attempt extends FutureTask<T> {
+            Attempt() {
+                super(task);
+            }
+
+            public void run() {
+                if (this == primary)
+                    startTimer();
+                super.run();
+            }
+
+            protected void done() {
+                if (isCancelled())
+                    return;
+                try {
+                    result.complete(get());
+                } catch (ExecutionException ex) {
+                    failure = ex.getCause();
+                    if (live.decrementAndGet() == 0)
+                        result.completeExceptionally(ex.getCause());
+                } catch (InterruptedException ex) {
+                    // cannot happen: done() is called once complete
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Registers a thread-local whose value, at the time a task is
+     * passed to {@link #execute}, is installed in the worker thread
+     * while that task runs and removed afterwards. This replaces
+     * wrapping each task by hand to propagate tracing or tenant
+     * context. Tasks submitted while none of the registered
+     * thread-locals has a value in the submitting thread are queued
+     * as is, at the cost of one read per carrier.
+     *
+     * <p>Tasks carrying context are queued wrapped, and so appear
+     * wrapped in {@link #getQueue}; {@link #remove(Runnable)},
+     * {@link #purge}, {@link #shutdownNow}, the hook methods and the
+     * rejected execution handler all deal in the task as submitted.
+     * A task returned by {@code shutdownNow} no longer carries its
+     * context. A {@code null} value is treated as no value. Reading a
+     * carrier at submission does not initialize it in the submitting
+     * thread, and while a task runs, a carrier that had no value in
+     * its submitter has none in the worker either, whatever earlier
+     * tasks left behind, at the cost of one removal per carrier.
+     *
+     * @param carrier the thread-local to propagate
+     * @throws NullPointerException if carrier is null
+     * @see #removeContextCarrier
+     */
+    public void addContextCarrier(ThreadLocal<?> carrier) {
+        if (carrier == null)
+            throw new NullPointerException();
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            ThreadLocal<?>[] carriers = contextCarriers;
+            if (carriers == null) {
+                contextCarriers = new ThreadLocal<?>[]{carrier};
+            } else {
+                for (ThreadLocal<?> t : carriers)
+                    if (t == carrier)
+                        return;
+                ThreadLocal<?>[] a = Arrays.copyOf(carriers, carriers.length + 1);
+                a[carriers.length] = carrier;
+                contextCarriers = a;
+            }
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Unregisters a thread-local registered with
+     * {@link #addContextCarrier}. Tasks already submitted keep the
+     * context they captured.
+     *
+     * @param carrier the thread-local
+     * @return {@code true} if it was registered
+     */
+    public boolean removeContextCarrier(ThreadLocal<?> carrier) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            ThreadLocal<?>[] carriers = contextCarriers;
+            if (carriers == null)
+                return false;
+            for (int i = 0; i < carriers.length; i++) {
+                if (carriers[i] == carrier) {
+                    if (carriers.length == 1) {
+                        contextCarriers = null;
+                    } else {
+                        ThreadLocal<?>[] a = new ThreadLocal<?>[carriers.length - 1];
+                        System.arraycopy(carriers, 0, a, 0, i);
+                        System.arraycopy(carriers, i + 1, a, i, a.length - i);
+                        contextCarriers = a;
+                    }
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the journal to which tasks passed to {@link #execute} are
+     * appended, if they are {@link java.io.Serializable}, before they
+     * are queued or run. Each journaled task is marked complete once
+     * it has run, whether or not it completed normally, and also when
+     * it is rejected or removed from the queue, but not when it is
+     * returned by {@link #shutdownNow}, so that a restarted process
+     * runs again every task that this one did not.
+     *
+     * <p>Tasks left unfinished by a previous run, and read back when
+     * the journal was opened, are first submitted to this pool, in the
+     * calling thread and in their original order. {@code execute}
+     * throws {@code RejectedExecutionException} if a task cannot be
+     * appended, for example because the journal has been closed.
+     * Journaled tasks may run more than once and should be idempotent.
+     *
+     * @param journal the journal, or {@code null} to stop journaling
+     * @see TaskJournal
+     */
+    public void setJournal(TaskJournal journal) {
+        this.journal = journal;
+        if (journal == null)
+            return;
+        for (TaskJournal.Entry e : journal.takeRecovered()) {
+            long bytes = sizeOf(e.task);
+            TaskEnvelope task = TaskEnvelope.journaled(e.task, journal, e.seq);
+            if (bytes != 0L && !acquireBytes(bytes)) {
+                task.completed();
+                reject(e.task);
+                continue;
+            }
+            dispatch(e.task, task, bytes);
+        }
+    }
+
+    /**
+     * Returns the journal tasks are appended to.
+     *
+     * @return the journal, or {@code null} if none
+     * @see #setJournal
+     */
+    public TaskJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Initiates an orderly shutdown in which previously submitted
+     * tasks are executed, but no new tasks will be accepted.
+     * Invocation has no additional effect if already shut down.
+     *
+     * <p>This method does not wait for previously submitted tasks to
+     * complete execution.  Use {@link #awaitTermination awaitTermination}
+     * to do that.
+     *
+     * @throws SecurityException {@inheritDoc}
+     */
+    public void shutdown() {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            checkShutdownAccess();
+            advanceRunState(SHUTDOWN);
+            interruptIdleWorkers();
+            resumed.signalAll(); // shutdown ends any pause
+            budgetAvailable.signalAll(); // blocked submitters now reject
+            onShutdown(); // hook for ScheduledThreadPoolExecutor
+        } finally {
+            mainLock.unlock();
+        }
+        tryTerminate();
+    }
+
+    /**
+     * Attempts to stop all actively executing tasks, halts the
+     * processing of waiting tasks, and returns a list of the tasks
+     * that were awaiting execution. These tasks are drained (removed)
+     * from the task queue upon return from this method.
+     *
+     * <p>This method does not wait for actively executing tasks to
+     * terminate.  Use {@link #awaitTermination awaitTermination} to
+     * do that.
+     *
+     * <p>There are no guarantees beyond best-effort attempts to stop
+     * processing actively executing tasks.  This implementation
+     * cancels tasks via {@link Thread#interrupt}, so any task that
+     * fails to respond to interrupts may never terminate.
+     *
+     * @throws SecurityException {@inheritDoc}
+     */
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks;
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            checkShutdownAccess();
+            advanceRunState(STOP);
+            interruptWorkers();
+            resumed.signalAll();
+            budgetAvailable.signalAll();
+            tasks = drainQueue();
+        } finally {
+            mainLock.unlock();
+        }
+        tryTerminate();
+        return tasks;
+    }
+
+    /**
+     * Pauses the processing of queued tasks without shutting down.
+     * New tasks are still accepted and queued as usual, but workers
+     * start no task until {@link #resume} is invoked: tasks already
+     * running complete, and each worker then waits, parked, until
+     * the pool is resumed or shut down. A worker that takes a task
+     * from the queue just as the pool is paused holds it until then.
+     * Invocation has no effect if already paused or shut down.
+     *
+     * <p>Shutting down a paused pool resumes it, so that
+     * {@link #shutdown} still lets queued tasks run.
+     *
+     * @see #resume
+     */
+    public void pause() {
+        for (; ; ) {
+            long c = ctl.get();
+            if (!isRunning(c) || isPaused(c))
+                return;
+            if (ctl.compareAndSet(c, c | PAUSED)) {
+                ThreadPoolEvents.runStateChanged(poolId, "RUNNING", "PAUSED",
+                        workerCountOf(c));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Resumes the processing of queued tasks after {@link #pause},
+     * waking all waiting workers. Invocation has no effect if not
+     * paused.
+     */
+    public void resume() {
+        for (; ; ) {
+            long c = ctl.get();
+            if (!isPaused(c))
+                return;
+            if (ctl.compareAndSet(c, c & ~PAUSED)) {
+                ThreadPoolEvents.runStateChanged(poolId, "PAUSED", "RUNNING",
+                        workerCountOf(c));
+                break;
+            }
+        }
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            resumed.signalAll();
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if this executor has been paused and not resumed
+     * or shut down since.
+     *
+     * @return {@code true} if paused
+     */
+    public boolean isPaused() {
+        return isPaused(ctl.get());
+    }
+
+    /**
+     * Sets whether a worker whose task throws keeps running. By
+     * default the exception terminates the worker thread, after
+     * {@link #afterExecute}, and a new thread replaces it; under a
+     * stream of failing tasks that means creating and
+     * destroying a thread per failure. If set, the worker instead
+     * passes the exception to {@code afterExecute} and then directly
+     * to its thread's {@link Thread.UncaughtExceptionHandler}, exactly
+     * the two places that would have seen it, and goes on to its
+     * next task. {@link VirtualMachineError}s and {@link ThreadDeath}
+     * still terminate the worker, as does an exception thrown by
+     * {@code beforeExecute} or {@code afterExecute}.
+     *
+     * @param value {@code true} to keep workers when tasks throw
+     */
+    public void setKeepWorkersOnTaskFailure(boolean value) {
+        keepWorkersOnTaskFailure = value;
+    }
+
+    /**
+     * Returns true if workers keep running when their task throws.
+     *
+     * @return {@code true} if workers are kept on task failure
+     * @see #setKeepWorkersOnTaskFailure
+     */
+    public boolean isKeepWorkersOnTaskFailure() {
+        return keepWorkersOnTaskFailure;
+    }
+
+    /**
+     * Hands an exception thrown by a task to the worker thread's
+     * uncaught exception handler, as the JVM would if the thread
+     * terminated with it. As there, an exception thrown by the
+     * handler is ignored.
+     */
+    private static void reportTaskFailure(Thread wt, Throwable ex) {
+        try {
+            wt.getUncaughtExceptionHandler().uncaughtException(wt, ex);
+        } catch (Throwable ignore) {
+        }
+    }
+
+    /**
+     * Sets the maximum rate at which workers start tasks, for pools
+     * whose tasks call services with a request rate limit. Up to
+     * {@code burst} tasks may start at once after a quiet period;
+     * beyond that, starts are spaced evenly at the given rate. A worker
+     * waits for its turn, parked, once it has taken a task from the
+     * queue, so at most one task per worker is held back this way;
+     * the others stay in the queue, where they can still be removed or
+     * drained. Idle workers take no turn, so a pool that runs short of
+     * tasks does not use up its rate. The rate may be changed at any
+     * time, taking effect immediately for waiting workers.
+     *
+     * <p>The limit is implemented as a lock-free token bucket: each
+     * task start costs one compare-and-set, and nothing at all while
+     * no rate is set.
+     *
+     * @param permitsPerSecond the maximum number of task starts per
+     *                         second, or {@code Double.POSITIVE_INFINITY}
+     *                         to remove the limit
+     * @param burst            the number of tasks that may start at once
+     * @throws IllegalArgumentException if {@code permitsPerSecond} is
+     *                                  not positive or {@code burst < 1}
+     * @see #getDispatchRate
+     */
+    public void setDispatchRate(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0.0) || burst < 1)
+            throw new IllegalArgumentException();
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            dispatchRate = (permitsPerSecond == Double.POSITIVE_INFINITY) ? null :
+                    new TokenBucket(permitsPerSecond, burst);
+            // Wake workers waiting on the old bucket to re-reserve
+            for (Worker w : workers)
+                LockSupport.unpark(w.thread);
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum rate at which workers start tasks.
+     *
+     * @return task starts per second, or {@code Double.POSITIVE_INFINITY}
+     * if not limited
+     * @see #setDispatchRate
+     */
+    public double getDispatchRate() {
+        TokenBucket bucket = dispatchRate;
+        return (bucket != null) ? bucket.permitsPerSecond : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Parks until the given System.nanoTime, returning true once it is
+     * reached. Returns false early if the dispatch rate has been
+     * changed since the given bucket was read, or if the pool is
+     * stopping. Interrupts are cleared: they are meant for idle
+     * workers, and runWorker re-asserts them on stop.
+     */
+    private boolean parkUntil(long deadline, TokenBucket bucket) {
+        for (; ; ) {
+            long nanos = deadline - System.nanoTime();
+            if (nanos <= 0L)
+                return true;
+            LockSupport.parkNanos(this, nanos);
+            Thread.interrupted();
+            if (dispatchRate != bucket ||
+                    runStateAtLeast(ctl.get(), STOP))
+                return false;
+        }
+    }
+
+    /**
+     * Waits for a dispatch token for a task the worker already holds,
+     * re-reserving if the rate changes meanwhile. Gives up only if
+     * the pool is stopping.
+     */
+    private void awaitDispatchToken() {
+        TokenBucket bucket;
+        while ((bucket = dispatchRate) != null &&
+                !runStateAtLeast(ctl.get(), STOP)) {
+            long token = bucket.reserve();
+            if (parkUntil(bucket.readyTime(token), bucket))
+                return;
+            bucket.cancel(token);
+        }
+    }
+
+    /**
+     * Waits while the pool is paused. Interrupts are ignored: those
+     * meant for idle workers are advisory, and shutdown clears the
+     * paused bit before interrupting.
+     */
+    private void awaitResume() {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            while (isPaused(ctl.get())) {
+                try {
+                    resumed.await();
+                } catch (InterruptedException ignore) {
+                }
+            }
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    public boolean isShutdown() {
+        return !isRunning(ctl.get());
+    }
+
+    /**
+     * Returns true if this executor is in the process of terminating
+     * after {@link #shutdown} or {@link #shutdownNow} but has not
+     * completely terminated.  This method may be useful for
+     * debugging. A return of {@code true} reported a sufficient
+     * period after shutdown may indicate that submitted tasks have
+     * ignored or suppressed interruption, causing this executor not
+     * to properly terminate.
+     *
+     * @return {@code true} if terminating but not yet terminated
+     */
+    public boolean isTerminating() {
+        long c = ctl.get();
+        return !isRunning(c) && runStateLessThan(c, TERMINATED);
+    }
+
+    public boolean isTerminated() {
+        return runStateAtLeast(ctl.get(), TERMINATED);
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            for (; ; ) {
+                if (runStateAtLeast(ctl.get(), TERMINATED))
+                    return true;
+                if (nanos <= 0)
+                    return false;
+                nanos = termination.awaitNanos(nanos);
+            }
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Invokes {@code shutdown} when this executor is no longer
+     * referenced and it has no threads.
+     */
+    protected void finalize() {
         shutdown();
     }
 
@@ -1660,28 +3611,194 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     }
 
     /**
-     * Sets the policy governing whether core threads may time out and
-     * terminate if no tasks arrive within the keep-alive time, being
-     * replaced if needed when new tasks arrive. When false, core
-     * threads are never terminated due to lack of incoming
-     * tasks. When true, the same keep-alive policy applying to
-     * non-core threads applies also to core threads. To avoid
-     * continual thread replacement, the keep-alive time must be
-     * greater than zero when setting {@code true}. This method
-     * should in general be called before the pool is actively used.
-     *
-     * @param value {@code true} if should time out, else {@code false}
-     * @throws IllegalArgumentException if value is {@code true}
-     *                                  and the current keep-alive time is not greater than zero
-     * @since 1.6
+     * Sets the policy governing whether core threads may time out and
+     * terminate if no tasks arrive within the keep-alive time, being
+     * replaced if needed when new tasks arrive. When false, core
+     * threads are never terminated due to lack of incoming
+     * tasks. When true, the same keep-alive policy applying to
+     * non-core threads applies also to core threads. To avoid
+     * continual thread replacement, the keep-alive time must be
+     * greater than zero when setting {@code true}. This method
+     * should in general be called before the pool is actively used.
+     *
+     * @param value {@code true} if should time out, else {@code false}
+     * @throws IllegalArgumentException if value is {@code true}
+     *                                  and the current keep-alive time is not greater than zero
+     * @since 1.6
+     */
+    public void allowCoreThreadTimeOut(boolean value) {
+        if (value && keepAliveTime <= 0)
+            throw new IllegalArgumentException("Core threads must have nonzero keep alive times");
+        if (value != allowCoreThreadTimeOut) {
+            allowCoreThreadTimeOut = value;
+            if (value)
+                interruptIdleWorkers();
+        }
+    }
+
+    /**
+     * Makes idle workers that time out retire only as fast as a
+     * smoothed estimate of demand falls, and at most
+     * {@code maxRetirements} per {@code interval}. By default each
+     * worker that has been idle for the keep-alive time terminates on
+     * its own, so under load that swings from busy to idle and back,
+     * the threads retired in one lull are created again in the next
+     * burst. With a retirement policy the pool keeps an exponentially
+     * weighted moving average of demand, sampled each time a worker is
+     * added (the pool size it grows to) and each time a worker times
+     * out (the number of active workers plus queued tasks), whose
+     * weight halves every {@code halfLife}. A timed-out worker retires
+     * only if the pool would still be at least that average, and only
+     * if fewer than {@code maxRetirements} workers have retired in the
+     * current interval; otherwise it waits another keep-alive period.
+     * Workers above the maximum pool size are not subject to this
+     * policy.
+     *
+     * @param maxRetirements the most workers that may retire per interval
+     * @param interval       the length of an interval
+     * @param halfLife       the age at which a demand sample carries
+     *                       half its initial weight
+     * @param unit           the time unit of the interval and halfLife
+     *                       arguments
+     * @throws IllegalArgumentException if maxRetirements, interval or
+     *                                  halfLife is not positive
+     * @throws NullPointerException     if unit is null
+     * @see #clearRetirementPolicy
+     */
+    public void setRetirementPolicy(int maxRetirements, long interval,
+                                    long halfLife, TimeUnit unit) {
+        if (maxRetirements <= 0 || interval <= 0L || halfLife <= 0L)
+            throw new IllegalArgumentException();
+        Retirement r = new Retirement(maxRetirements, unit.toNanos(interval),
+                unit.toNanos(halfLife));
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            // Start from the current size rather than from zero, so
+            // that installing a policy does not release a wave of
+            // retirements.
+            r.demand = workers.size();
+            retirement = r;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the retirement policy, so that each idle worker again
+     * terminates once it has been idle for the keep-alive time.
+     *
+     * @see #setRetirementPolicy
+     */
+    public void clearRetirementPolicy() {
+        retirement = null;
+    }
+
+    /**
+     * Returns the pool's current smoothed estimate of demand, or -1
+     * if no retirement policy is set.
+     *
+     * @return the demand estimate, or -1
+     * @see #setRetirementPolicy
+     */
+    public double getEstimatedDemand() {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            Retirement r = retirement;
+            return (r == null) ? -1.0 : r.demand;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Decides whether a worker that timed out while the pool had wc
+     * workers may retire. The retirement is counted only once the
+     * worker count is decremented, by decrementForRetirement.
+     */
+    private boolean mayRetire(int wc) {
+        Retirement r = retirement;
+        if (r == null)
+            return true;
+        int active = activeCountOf(wc);
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            return r.mayRetire(System.nanoTime(), wc,
+                    active + workQueue.size());
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Decrements the worker count from c for a worker that mayRetire
+     * let go, counting the retirement if the decrement succeeds.
+     * Rechecks the policy's allowance under mainLock, so that workers
+     * timing out together cannot exceed it between deciding and
+     * decrementing. Returns false if the worker should look again.
+     */
+    private boolean decrementForRetirement(long c) {
+        Retirement r = retirement;
+        if (r == null)
+            return compareAndDecrementWorkerCount(c);
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            if (r.retired >= r.maxRetirements ||
+                    !compareAndDecrementWorkerCount(c))
+                return false;
+            ++r.retired;
+            return true;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * State of a retirement policy. Accessed only under mainLock.
      */
-    public void allowCoreThreadTimeOut(boolean value) {
-        if (value && keepAliveTime <= 0)
-            throw new IllegalArgumentException("Core threads must have nonzero keep alive times");
-        if (value != allowCoreThreadTimeOut) {
-            allowCoreThreadTimeOut = value;
-            if (value)
-                interruptIdleWorkers();
+    private static final class Retirement {
+        final int maxRetirements;
+        final long interval;
+        final long halfLife;
+
+        /**
+         * The moving average of demand
+         */
+        double demand;
+        long lastSample;
+        long intervalStart;
+        int retired;
+
+        Retirement(int maxRetirements, long interval, long halfLife) {
+            this.maxRetirements = maxRetirements;
+            this.interval = interval;
+            this.halfLife = halfLife;
+            lastSample = intervalStart = System.nanoTime();
+        }
+
+        /**
+         * Folds in a demand sample, weighted by the time since the
+         * previous one.
+         */
+        void sample(long now, int value) {
+            long elapsed = now - lastSample;
+            if (elapsed > 0L) {
+                double weight = 1.0 - Math.pow(2.0, -(double) elapsed / halfLife);
+                demand += weight * (value - demand);
+                lastSample = now;
+            }
+        }
+
+        boolean mayRetire(long now, int wc, int demandNow) {
+            sample(now, demandNow);
+            if (now - intervalStart >= interval) {
+                intervalStart = now;
+                retired = 0;
+            }
+            return retired < maxRetirements && wc - 1 >= Math.ceil(demand);
         }
     }
 
@@ -1760,7 +3877,9 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * Returns the task queue used by this executor. Access to the
      * task queue is intended primarily for debugging and monitoring.
      * This queue may be in active use.  Retrieving the task queue
-     * does not prevent queued tasks from executing.
+     * does not prevent queued tasks from executing. Tasks carrying
+     * context (see {@link #addContextCarrier}) or journaled (see
+     * {@link #setJournal}) are held in the queue wrapped.
      *
      * @return the task queue
      */
@@ -1786,6 +3905,15 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     public boolean remove(Runnable task) {
         boolean removed = workQueue.remove(task);
+        if (removed) {
+            retire(task);
+        } else if (task != null && tasksWrapped) {
+            Runnable e = findEnvelope(task);
+            if (e != null && workQueue.remove(e)) {
+                retire(e);
+                removed = true;
+            }
+        }
         tryTerminate(); // In case SHUTDOWN and now empty
         return removed;
     }
@@ -1802,20 +3930,28 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      */
     public void purge() {
         final BlockingQueue<Runnable> q = workQueue;
+        // Queued tasks may be wrapped, so test the task each entry
+        // holds. Entries are removed with q.remove rather than the
+        // iterator's remove, which does not say whether it was this
+        // call or a concurrent one that took the entry out, so that
+        // each task is retired exactly once.
         try {
-            Iterator<Runnable> it = q.iterator();
-            while (it.hasNext()) {
-                Runnable r = it.next();
-                if (r instanceof Future<?> && ((Future<?>) r).isCancelled())
-                    it.remove();
+            for (Runnable r : q) {
+                Runnable t = unwrap(r);
+                if (t instanceof Future<?> && ((Future<?>) t).isCancelled() &&
+                        q.remove(r))
+                    retire(r);
             }
         } catch (ConcurrentModificationException fallThrough) {
             // Take slow path if we encounter interference during traversal.
             // Make copy for traversal and call remove for cancelled entries.
             // The slow path is more likely to be O(N*N).
-            for (Object r : q.toArray())
-                if (r instanceof Future<?> && ((Future<?>) r).isCancelled())
-                    q.remove(r);
+            for (Object r : q.toArray()) {
+                Runnable t = unwrap((Runnable) r);
+                if (t instanceof Future<?> && ((Future<?>) t).isCancelled() &&
+                        q.remove(r))
+                    retire((Runnable) r);
+            }
         }
 
         tryTerminate(); // In case SHUTDOWN and now empty
@@ -1848,17 +3984,17 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
      * @return the number of threads
      */
     public int getActiveCount() {
-        final ReentrantLock mainLock = this.mainLock;
-        mainLock.lock();
-        try {
-            int n = 0;
-            for (Worker w : workers)
-                if (w.isLocked())
-                    ++n;
-            return n;
-        } finally {
-            mainLock.unlock();
-        }
+        return activeCountOf(workerCountOf(ctl.get()));
+    }
+
+    /**
+     * Returns the number of workers running a task, bounded by the
+     * given worker count, as the sum of activeWorkers is not taken
+     * atomically.
+     */
+    private int activeCountOf(int wc) {
+        long n = activeWorkers.sum();
+        return (n <= 0L) ? 0 : (n >= wc) ? wc : (int) n;
     }
 
     /**
@@ -1923,6 +4059,493 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         }
     }
 
+    /**
+     * Starts or stops recording of task start times for a
+     * ThreadPoolWatchdog. Calls nest.
+     */
+    void watchTaskStarts(boolean on) {
+        if (on)
+            taskStartWatchers.incrementAndGet();
+        else
+            taskStartWatchers.decrementAndGet();
+    }
+
+    /**
+     * Collects, for ThreadPoolWatchdog, the workers whose current task
+     * has been running for at least the given time.
+     *
+     * @param now       the current System.nanoTime
+     * @param threshold the minimum running time to collect
+     * @param out       receives the collected workers
+     * @return the number of workers running a task
+     */
+    int collectRunningTasks(long now, long threshold,
+                            List<ThreadPoolWatchdog.StuckWorker> out) {
+        int busy = 0;
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            for (Worker w : workers) {
+                long start = w.taskStartTime;
+                if (start != 0L) {
+                    ++busy;
+                    long running = now - start;
+                    if (running >= threshold)
+                        out.add(new ThreadPoolWatchdog.StuckWorker(w.thread,
+                                running, start));
+                }
+            }
+        } finally {
+            mainLock.unlock();
+        }
+        return busy;
+    }
+
+    /**
+     * Interrupts the given worker thread if it is still running the
+     * task that started at the given time, as reported by
+     * collectRunningTasks. The worker cannot finish the task and
+     * start another between the check and the interrupt (see
+     * Worker.interruptTask).
+     *
+     * @return true if the thread was interrupted
+     */
+    boolean interruptTask(Thread thread, long taskStartTime) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            for (Worker w : workers) {
+                if (w.thread == thread)
+                    return w.interruptTask(taskStartTime);
+            }
+            return false;
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a worker without a first task beyond corePoolSize, as
+     * long as the pool is below maximumPoolSize. Used to compensate
+     * for workers that are stuck while tasks are waiting; the extra
+     * worker times out as usual once idle.
+     *
+     * @return true if a worker was started
+     */
+    boolean addCompensationWorker() {
+        return addWorker(null, false);
+    }
+
+    /**
+     * Sets whether worker threads have their thread-locals scrubbed
+     * between tasks. When enabled, the thread-locals of each worker
+     * are captured before the first task it runs with scrubbing on,
+     * and after every task they are reset to that capture in bulk:
+     * values set by the task, or by the hook methods around it, are
+     * dropped together with the task's copy of the map rather than
+     * lingering for the life of the worker. This prevents the leak
+     * in which a value strongly reaches its own {@code ThreadLocal}
+     * key and so is never expunged.
+     *
+     * <p>Thread-locals a worker thread already has when the capture is
+     * taken, such as those set up by the {@link ThreadFactory} or, if
+     * scrubbing is enabled while the pool is running, by tasks the
+     * worker ran before, are kept: each reset restores their values
+     * as captured. Everything set from then on is wiped after every
+     * task, including values set up in {@link #beforeExecute}, so
+     * per-thread state that should outlive a task belongs in the
+     * thread factory. The pool's own per-worker state is exempt.
+     *
+     * <p>Since workers rarely have thread-locals of their own before
+     * their first task, the reset usually just clears the map in
+     * place and costs no allocation; otherwise it copies the captured
+     * map. The trade-off is that caches kept in thread-locals by task
+     * code are rebuilt by every task.
+     *
+     * @param value {@code true} to scrub thread-locals between tasks
+     */
+    public void setThreadLocalScrubbing(boolean value) {
+        this.scrubThreadLocals = value;
+    }
+
+    /**
+     * Returns true if worker threads have their thread-locals scrubbed
+     * between tasks.
+     *
+     * @return {@code true} if thread-locals are scrubbed
+     * @see #setThreadLocalScrubbing
+     */
+    public boolean isThreadLocalScrubbing() {
+        return scrubThreadLocals;
+    }
+
+    /**
+     * Returns the number of workers that may currently be running in
+     * excess of maximumPoolSize: one per worker blocked in
+     * managedBlock, up to maximumCompensation.
+     */
+    private int compensationAllowance() {
+        int cap = maximumCompensation;
+        return (cap == 0) ? 0 : Math.min(blockedWorkers.get(), cap);
+    }
+
+    /**
+     * Blocks in accordance with the given blocker, like {@link
+     * ForkJoinPool#managedBlock}. If the current thread is a worker
+     * of a {@code ThreadPoolExecutor}, that pool is told that the
+     * worker is about to block: if fewer than corePoolSize of its
+     * workers would be left runnable, the pool starts a compensation
+     * worker, so that queued tasks keep running while this one waits.
+     * Compensation workers count against maximumPoolSize, or may
+     * exceed it by up to {@link #setMaximumCompensation
+     * maximumCompensation} workers. Once the block ends, surplus
+     * workers beyond maximumPoolSize exit as soon as they are idle,
+     * and those beyond corePoolSize time out after the keep-alive
+     * time as usual.
+     *
+     * <p>If the current thread is not a pool worker, this method
+     * simply blocks as the blocker directs.
+     *
+     * <pre> {@code
+     * class QueueTaker<E> implements ForkJoinPool.ManagedBlocker {
+     *   final BlockingQueue<E> queue;
+     *   volatile E item = null;
+     *   QueueTaker(BlockingQueue<E> q) { this.queue = q; }
+     *   public boolean block() throws InterruptedException {
+     *     if (item == null)
+     *       item = queue.take();
+     *     return true;
+     *   }
+     *   public boolean isReleasable() {
+     *     return item != null || (item = queue.poll()) != null;
+     *   }
+     *   public E getItem() { // call after pool.managedBlock completes
+     *     return item;
+     *   }
+     * }}</pre>
+     *
+     * @param blocker the blocker task
+     * @throws InterruptedException if {@code blocker.block()} did so
+     */
+    public static void managedBlock(ForkJoinPool.ManagedBlocker blocker)
+            throws InterruptedException {
+        if (blocker == null)
+            throw new NullPointerException();
+        if (blocker.isReleasable())
+            return;
+        Worker w = currentWorker.get();
+        ThreadPoolExecutor pool = (w != null) ? w.pool() : null;
+        if (pool != null)
+            pool.beginBlocking();
+        try {
+            do {
+            } while (!blocker.isReleasable() && !blocker.block());
+        } finally {
+            if (pool != null)
+                pool.endBlocking();
+        }
+    }
+
+    /**
+     * Records that a worker is about to block, starting a
+     * compensation worker if too few would be left runnable.
+     */
+    private void beginBlocking() {
+        int blocked = blockedWorkers.incrementAndGet();
+        long c = ctl.get();
+        if (isRunning(c) &&
+                workerCountOf(c) - blocked < Math.max(corePoolSize, 1))
+            addWorker(null, false);
+    }
+
+    /**
+     * Records that a blocked worker has resumed, waking an idle worker
+     * to exit if the pool is now above its bound.
+     */
+    private void endBlocking() {
+        blockedWorkers.decrementAndGet();
+        if (workerCountOf(ctl.get()) > maximumPoolSize + compensationAllowance())
+            interruptIdleWorkers(ONLY_ONE);
+    }
+
+    /**
+     * Sets the maximum number of compensation workers that may be
+     * started beyond the maximum pool size while workers are blocked
+     * in {@link #managedBlock}. With the default of zero,
+     * compensation is bounded by the maximum pool size, so a pool
+     * whose core and maximum sizes are equal never compensates.
+     *
+     * @param maximumCompensation the new limit
+     * @throws IllegalArgumentException if {@code maximumCompensation < 0}
+     * @see #getMaximumCompensation
+     */
+    public void setMaximumCompensation(int maximumCompensation) {
+        if (maximumCompensation < 0)
+            throw new IllegalArgumentException();
+        int delta = maximumCompensation - this.maximumCompensation;
+        this.maximumCompensation = maximumCompensation;
+        if (delta < 0 &&
+                workerCountOf(ctl.get()) > maximumPoolSize + compensationAllowance())
+            interruptIdleWorkers();
+    }
+
+    /**
+     * Returns the maximum number of compensation workers that may be
+     * started beyond the maximum pool size.
+     *
+     * @return the limit
+     * @see #setMaximumCompensation
+     */
+    public int getMaximumCompensation() {
+        return maximumCompensation;
+    }
+
+    /**
+     * Returns the approximate number of workers currently blocked in
+     * {@link #managedBlock}.
+     *
+     * @return the number of blocked workers
+     */
+    public int getBlockedCount() {
+        return blockedWorkers.get();
+    }
+
+    /**
+     * Returns the number of tasks that have been passed to the
+     * rejected execution handler.
+     *
+     * @return the number of rejected tasks
+     */
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount.sum();
+    }
+
+    /**
+     * Enables or disables tracking of task execution latencies. When
+     * enabled, each task run costs two {@code System.nanoTime} calls
+     * and one atomic increment, and the distribution is reported by
+     * {@link #snapshot}. Disabling discards the recorded latencies.
+     * Tracking is enabled automatically when the pool's MBean is
+     * registered.
+     *
+     * @param value {@code true} to track latencies
+     */
+    public void setLatencyTracking(boolean value) {
+        final ReentrantLock mainLock = this.mainLock;
+        mainLock.lock();
+        try {
+            if (!value)
+                latencies = null;
+            else if (latencies == null)
+                latencies = new LatencyHistogram();
+        } finally {
+            mainLock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if task execution latencies are being tracked.
+     *
+     * @return {@code true} if latencies are tracked
+     * @see #setLatencyTracking
+     */
+    public boolean isLatencyTracking() {
+        return latencies != null;
+    }
+
+    /**
+     * Returns a snapshot of this pool's statistics. Unlike calling
+     * {@link #getPoolSize}, {@link #getActiveCount},
+     * {@link #getLargestPoolSize} and {@link #getCompletedTaskCount}
+     * in turn, most of which acquire the main lock and walk the
+     * workers once per call, this method takes no lock: it reads the
+     * run state and worker count once, and the other values from
+     * counters that workers maintain as they go, so that monitoring
+     * does not contend with the pool. The values are read close
+     * together, though not at a single instant.
+     *
+     * @return the snapshot
+     */
+    public ThreadPoolSnapshot snapshot() {
+        long c = ctl.get();
+        int nworkers = runStateAtLeast(c, TIDYING) ? 0 : workerCountOf(c);
+        int nactive = activeCountOf(nworkers);
+        // A worker is counted in ctl before addWorker updates the
+        // largest size
+        int largest = Math.max(largestPoolSize, nworkers);
+        long ncompleted = completions.sum();
+        LatencyHistogram h = latencies;
+        long[] p = (h != null) ? h.percentiles(SNAPSHOT_PERCENTILES)
+                : new long[SNAPSHOT_PERCENTILES.length];
+        return new ThreadPoolSnapshot(System.currentTimeMillis(),
+                runStateName(runStateOf(c)), corePoolSize, maximumPoolSize,
+                nworkers, nactive, largest, workQueue.size(), ncompleted,
+                rejectedTaskCount.sum(), budgetedBytes.get(),
+                (h != null) ? h.count() : 0L,
+                p[0], p[1], p[2], p[3]);
+    }
+
+    /**
+     * Registers a {@link ThreadPoolExecutorMXBean} for this pool with
+     * the platform MBean server, under the name
+     * {@code com.bitc.JDK.util.concurrent:type=ThreadPoolExecutor,id=}<i>n</i>,
+     * and enables latency tracking. Invoking this method on a pool
+     * that is already registered returns the existing name. The MBean
+     * only weakly references the pool and is unregistered when the
+     * pool terminates.
+     *
+     * <p>Every pool registers itself when it starts its first worker
+     * if the system property
+     * {@code com.bitc.JDK.util.concurrent.ThreadPoolExecutor.registerMBeans}
+     * is {@code true}.
+     *
+     * @return the name of the registered MBean
+     * @throws IllegalStateException if registration fails, or the pool
+     *                               has terminated
+     */
+    public ObjectName registerMBean() {
+        return registerMBean(null);
+    }
+
+    /**
+     * Same as {@link #registerMBean()}, but adds a {@code name} key
+     * with the given value to the MBean name, so that monitoring
+     * tools can show a meaningful pool name.
+     *
+     * @param name the pool name, or null to omit
+     * @return the name of the registered MBean
+     * @throws IllegalStateException if registration fails, or the pool
+     *                               has terminated
+     */
+    public ObjectName registerMBean(String name) {
+        synchronized (mbeanLock) {
+            if (mbeanName == null) {
+                // tryTerminate unregisters once TIDYING is set, so
+                // checking here leaves no MBean behind
+                if (runStateAtLeast(ctl.get(), TIDYING))
+                    throw new IllegalStateException("pool has terminated");
+                try {
+                    String s = MBEAN_DOMAIN + ":type=ThreadPoolExecutor,id=" + poolId;
+                    if (name != null)
+                        s += ",name=" + ObjectName.quote(name);
+                    ObjectName on = new ObjectName(s);
+                    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                    server.registerMBean(new Management(this), on);
+                    mbeanName = on;
+                } catch (JMException e) {
+                    throw new IllegalStateException(e);
+                }
+                setLatencyTracking(true);
+            }
+            return mbeanName;
+        }
+    }
+
+    /**
+     * Unregisters this pool's MBean, if registered.
+     */
+    public void unregisterMBean() {
+        synchronized (mbeanLock) {
+            ObjectName on = mbeanName;
+            if (on != null) {
+                mbeanName = null;
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(on);
+                } catch (JMException ignore) {
+                    // already unregistered by someone else
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers the MBean on behalf of the registerMBeans property,
+     * once per pool; an explicit unregisterMBean is not undone.
+     */
+    private void autoRegisterMBean() {
+        mbeanAutoRegistered = true;
+        try {
+            registerMBean();
+        } catch (RuntimeException ignore) {
+            // A pool without an MBean is still a working pool
+        }
+    }
+
+    /**
+     * The registered MBean. Holds the pool weakly so that registration
+     * does not prevent an unreferenced pool from being finalized.
+     */
+    private static final class Management implements ThreadPoolExecutorMXBean {
+        private final WeakReference<ThreadPoolExecutor> ref;
+
+        Management(ThreadPoolExecutor pool) {
+            this.ref = new WeakReference<ThreadPoolExecutor>(pool);
+        }
+
+        private ThreadPoolExecutor pool() {
+            ThreadPoolExecutor pool = ref.get();
+            if (pool == null)
+                throw new IllegalStateException("pool has been reclaimed");
+            return pool;
+        }
+
+        public ThreadPoolSnapshot getSnapshot() {
+            return pool().snapshot();
+        }
+
+        public int getCorePoolSize() {
+            return pool().getCorePoolSize();
+        }
+
+        public void setCorePoolSize(int corePoolSize) {
+            pool().setCorePoolSize(corePoolSize);
+        }
+
+        public int getMaximumPoolSize() {
+            return pool().getMaximumPoolSize();
+        }
+
+        public void setMaximumPoolSize(int maximumPoolSize) {
+            pool().setMaximumPoolSize(maximumPoolSize);
+        }
+
+        public long getKeepAliveTimeMillis() {
+            return pool().getKeepAliveTime(TimeUnit.MILLISECONDS);
+        }
+
+        public void setKeepAliveTimeMillis(long keepAliveTime) {
+            pool().setKeepAliveTime(keepAliveTime, TimeUnit.MILLISECONDS);
+        }
+
+        public boolean isAllowCoreThreadTimeOut() {
+            return pool().allowsCoreThreadTimeOut();
+        }
+
+        public void setAllowCoreThreadTimeOut(boolean value) {
+            pool().allowCoreThreadTimeOut(value);
+        }
+
+        public long getByteBudget() {
+            return pool().getByteBudget();
+        }
+
+        public void setByteBudget(long maxBytes) {
+            pool().setByteBudget(maxBytes);
+        }
+
+        public boolean isPaused() {
+            return pool().isPaused();
+        }
+
+        public void pause() {
+            pool().pause();
+        }
+
+        public void resume() {
+            pool().resume();
+        }
+    }
+
     /**
      * Returns a string identifying this pool, as well as its state,
      * including indications of run state and estimated worker and
@@ -1937,18 +4560,16 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
         mainLock.lock();
         try {
             ncompleted = completedTaskCount;
-            nactive = 0;
             nworkers = workers.size();
-            for (Worker w : workers) {
+            for (Worker w : workers)
                 ncompleted += w.completedTasks;
-                if (w.isLocked())
-                    ++nactive;
-            }
+            nactive = activeCountOf(nworkers);
         } finally {
             mainLock.unlock();
         }
-        int c = ctl.get();
-        String rs = (runStateLessThan(c, SHUTDOWN) ? "Running" :
+        long c = ctl.get();
+        String rs = (isPaused(c) ? "Paused" :
+                runStateLessThan(c, SHUTDOWN) ? "Running" :
                 (runStateAtLeast(c, TERMINATED) ? "Terminated" :
                         "Shutting down"));
         return super.toString() +
@@ -2037,6 +4658,23 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
     protected void terminated() {
     }
 
+    /**
+     * What {@link #execute} does with a {@link SizedTask} that does
+     * not fit in the byte budget (see {@link #setBudgetPolicy}).
+     */
+    public enum BudgetPolicy {
+        /**
+         * Pass the task to the rejected execution handler
+         */
+        REJECT,
+        /**
+         * Block the submitting thread until the task fits, or until
+         * the pool is shut down or the thread is interrupted, in which
+         * case the task is passed to the rejected execution handler
+         */
+        BLOCK
+    }
+
     /* Predefined RejectedExecutionHandlers */
 
     /**
@@ -2129,13 +4767,20 @@ public class ThreadPoolExecutor extends AbstractExecutorService {
          * would otherwise execute, if one is immediately available,
          * and then retries execution of task r, unless the executor
          * is shut down, in which case task r is instead discarded.
+         * Task r is also discarded if the queue is empty and r does
+         * not fit in the executor's byte budget, as then only running
+         * tasks hold the budget and retrying could not succeed.
          *
          * @param r the runnable task requested to be executed
          * @param e the executor attempting to execute this task
          */
         public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
             if (!e.isShutdown()) {
-                e.getQueue().poll();
+                Runnable oldest = e.getQueue().poll();
+                if (oldest != null)
+                    e.retire(oldest);
+                else if (!e.fitsByteBudget(sizeOf(r)))
+                    return; // only running tasks hold the budget
                 e.execute(r);
             }
         }
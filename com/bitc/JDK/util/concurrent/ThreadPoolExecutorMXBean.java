@@ -0,0 +1,92 @@
+package com.bitc.JDK.util.concurrent;
+
+/**
+ * The management interface of a {@link ThreadPoolExecutor}, registered
+ * with the platform MBean server by
+ * {@link ThreadPoolExecutor#registerMBean}.
+ *
+ * <p>All statistics are exposed through the single {@link #getSnapshot}
+ * attribute so that a monitoring scrape acquires the pool's main lock
+ * once rather than once per attribute. The sizing attributes are
+ * writable and delegate to the pool's own setters, with the same
+ * validation and the same effect on running workers.
+ */
+public interface ThreadPoolExecutorMXBean {
+
+    /**
+     * Returns a consistent snapshot of the pool's statistics.
+     *
+     * @return the snapshot
+     * @see ThreadPoolExecutor#snapshot
+     */
+    ThreadPoolSnapshot getSnapshot();
+
+    /**
+     * @see ThreadPoolExecutor#getCorePoolSize
+     */
+    int getCorePoolSize();
+
+    /**
+     * @see ThreadPoolExecutor#setCorePoolSize
+     */
+    void setCorePoolSize(int corePoolSize);
+
+    /**
+     * @see ThreadPoolExecutor#getMaximumPoolSize
+     */
+    int getMaximumPoolSize();
+
+    /**
+     * @see ThreadPoolExecutor#setMaximumPoolSize
+     */
+    void setMaximumPoolSize(int maximumPoolSize);
+
+    /**
+     * Returns the keep-alive time in milliseconds.
+     *
+     * @see ThreadPoolExecutor#getKeepAliveTime
+     */
+    long getKeepAliveTimeMillis();
+
+    /**
+     * Sets the keep-alive time in milliseconds.
+     *
+     * @see ThreadPoolExecutor#setKeepAliveTime
+     */
+    void setKeepAliveTimeMillis(long keepAliveTime);
+
+    /**
+     * @see ThreadPoolExecutor#allowsCoreThreadTimeOut
+     */
+    boolean isAllowCoreThreadTimeOut();
+
+    /**
+     * @see ThreadPoolExecutor#allowCoreThreadTimeOut
+     */
+    void setAllowCoreThreadTimeOut(boolean value);
+
+    /**
+     * @see ThreadPoolExecutor#getByteBudget
+     */
+    long getByteBudget();
+
+    /**
+     * @see ThreadPoolExecutor#setByteBudget
+     */
+    void setByteBudget(long maxBytes);
+
+    /**
+     * @see ThreadPoolExecutor#isPaused
+     */
+    boolean isPaused();
+
+    /**
+     * @see ThreadPoolExecutor#pause
+     */
+    void pause();
+
+    /**
+     * @see ThreadPoolExecutor#resume
+     */
+    void resume();
+}
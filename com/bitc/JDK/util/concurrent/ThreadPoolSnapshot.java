@@ -0,0 +1,180 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * An immutable, internally consistent view of the statistics of a
+ * {@link ThreadPoolExecutor}, as returned by
+ * {@link ThreadPoolExecutor#snapshot}.
+ *
+ * <p>The worker-derived values (pool size, active count, largest pool
+ * size and completed task count) are gathered in a single pass while
+ * holding the pool's main lock, so unlike successive calls to the
+ * individual getters they describe the same instant. Queue size,
+ * rejection count, budgeted bytes and latency percentiles are read
+ * immediately after and are approximate in the same way their
+ * individual accessors are.
+ *
+ * <p>Latencies are task execution times in nanoseconds, as measured
+ * around {@code Runnable.run} on the worker thread. They are zero
+ * unless latency tracking is enabled (see
+ * {@link ThreadPoolExecutor#setLatencyTracking}).
+ *
+ * <p>Instances map to JMX {@code CompositeData} through the
+ * {@link ThreadPoolExecutorMXBean} interface.
+ */
+public final class ThreadPoolSnapshot {
+    private final long timestamp;
+    private final String runState;
+    private final int corePoolSize;
+    private final int maximumPoolSize;
+    private final int poolSize;
+    private final int activeCount;
+    private final int largestPoolSize;
+    private final int queueSize;
+    private final long completedTaskCount;
+    private final long rejectedTaskCount;
+    private final long budgetedBytes;
+    private final long latencyCount;
+    private final long latencyP50Nanos;
+    private final long latencyP90Nanos;
+    private final long latencyP99Nanos;
+    private final long latencyP999Nanos;
+
+    /**
+     * Creates a snapshot with the given values. Normally only invoked
+     * by {@link ThreadPoolExecutor#snapshot} and by JMX when
+     * reconstructing a snapshot from {@code CompositeData}.
+     */
+    @ConstructorProperties({"timestamp", "runState", "corePoolSize",
+            "maximumPoolSize", "poolSize", "activeCount", "largestPoolSize",
+            "queueSize", "completedTaskCount", "rejectedTaskCount",
+            "budgetedBytes", "latencyCount", "latencyP50Nanos", "latencyP90Nanos",
+            "latencyP99Nanos", "latencyP999Nanos"})
+    public ThreadPoolSnapshot(long timestamp, String runState,
+                              int corePoolSize, int maximumPoolSize,
+                              int poolSize, int activeCount,
+                              int largestPoolSize, int queueSize,
+                              long completedTaskCount, long rejectedTaskCount,
+                              long budgetedBytes, long latencyCount, long latencyP50Nanos,
+                              long latencyP90Nanos, long latencyP99Nanos,
+                              long latencyP999Nanos) {
+        this.timestamp = timestamp;
+        this.runState = runState;
+        this.corePoolSize = corePoolSize;
+        this.maximumPoolSize = maximumPoolSize;
+        this.poolSize = poolSize;
+        this.activeCount = activeCount;
+        this.largestPoolSize = largestPoolSize;
+        this.queueSize = queueSize;
+        this.completedTaskCount = completedTaskCount;
+        this.rejectedTaskCount = rejectedTaskCount;
+        this.budgetedBytes = budgetedBytes;
+        this.latencyCount = latencyCount;
+        this.latencyP50Nanos = latencyP50Nanos;
+        this.latencyP90Nanos = latencyP90Nanos;
+        this.latencyP99Nanos = latencyP99Nanos;
+        this.latencyP999Nanos = latencyP999Nanos;
+    }
+
+    /**
+     * Returns the time the snapshot was taken, in milliseconds since
+     * the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Returns the run state: one of RUNNING, SHUTDOWN, STOP, TIDYING
+     * or TERMINATED.
+     */
+    public String getRunState() {
+        return runState;
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    public int getMaximumPoolSize() {
+        return maximumPoolSize;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    public int getActiveCount() {
+        return activeCount;
+    }
+
+    public int getLargestPoolSize() {
+        return largestPoolSize;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public long getCompletedTaskCount() {
+        return completedTaskCount;
+    }
+
+    /**
+     * Returns the number of tasks handed to the rejected execution
+     * handler since the pool was created.
+     */
+    public long getRejectedTaskCount() {
+        return rejectedTaskCount;
+    }
+
+    /**
+     * Returns the total estimated size of the sized tasks that were
+     * queued or running.
+     *
+     * @see ThreadPoolExecutor#getBudgetedBytes
+     */
+    public long getBudgetedBytes() {
+        return budgetedBytes;
+    }
+
+    /**
+     * Returns the number of task latencies the percentiles are
+     * computed from.
+     */
+    public long getLatencyCount() {
+        return latencyCount;
+    }
+
+    public long getLatencyP50Nanos() {
+        return latencyP50Nanos;
+    }
+
+    public long getLatencyP90Nanos() {
+        return latencyP90Nanos;
+    }
+
+    public long getLatencyP99Nanos() {
+        return latencyP99Nanos;
+    }
+
+    public long getLatencyP999Nanos() {
+        return latencyP999Nanos;
+    }
+
+    public String toString() {
+        return super.toString() +
+                "[" + runState +
+                ", pool size = " + poolSize +
+                ", active threads = " + activeCount +
+                ", largest pool size = " + largestPoolSize +
+                ", queued tasks = " + queueSize +
+                ", completed tasks = " + completedTaskCount +
+                ", rejected tasks = " + rejectedTaskCount +
+                ", budgeted bytes = " + budgetedBytes +
+                ", p50/p99 latency ns = " + latencyP50Nanos +
+                "/" + latencyP99Nanos +
+                "]";
+    }
+}
@@ -0,0 +1,379 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A monitor that detects hung tasks and pool starvation in a
+ * {@link ThreadPoolExecutor} and reports them, with stack samples of
+ * the workers involved, to a {@link Listener}.
+ *
+ * <p>While a watchdog is running, each worker of the pool records the
+ * start time of its current task in a field of the worker itself, so
+ * tracking costs one {@code System.nanoTime} call and two volatile
+ * writes per task and never allocates. A single daemon thread wakes
+ * every check interval and:
+ *
+ * <ul>
+ * <li>reports a {@link Kind#HUNG_TASK} alert for the workers whose
+ * current task has run longer than the hung task threshold, and</li>
+ * <li>reports a {@link Kind#STARVATION} alert when every worker is
+ * busy and the work queue has grown at each of the last
+ * {@code starvationChecks} checks, which is what a pool whose
+ * workers are all stuck in blocking calls looks like.</li>
+ * </ul>
+ *
+ * <p>Optionally the watchdog also mitigates: {@link Mitigation#INTERRUPT}
+ * interrupts the threads running hung tasks, and
+ * {@link Mitigation#COMPENSATE} starts an extra worker on starvation,
+ * as long as the pool is below its maximum pool size. Extra workers
+ * time out as usual once the backlog clears.
+ *
+ * <pre> {@code
+ * ThreadPoolWatchdog watchdog = new ThreadPoolWatchdog(pool,
+ *     1, TimeUnit.SECONDS,      // check interval
+ *     30, TimeUnit.SECONDS,     // hung task threshold
+ *     alert -> log.warn(alert.toString()));
+ * watchdog.setMitigation(ThreadPoolWatchdog.Mitigation.COMPENSATE);
+ * watchdog.start();}</pre>
+ *
+ * <p>The watchdog stops by itself when the pool terminates.
+ */
+public class ThreadPoolWatchdog {
+
+    /**
+     * The kind of condition an {@link Alert} reports.
+     */
+    public enum Kind {
+        /**
+         * One or more tasks have run longer than the threshold
+         */
+        HUNG_TASK,
+        /**
+         * All workers are busy and the queue keeps growing
+         */
+        STARVATION
+    }
+
+    /**
+     * What the watchdog does, besides reporting, about the conditions
+     * it detects.
+     */
+    public enum Mitigation {
+        /**
+         * Only report
+         */
+        NONE,
+        /**
+         * Interrupt the threads running hung tasks
+         */
+        INTERRUPT,
+        /**
+         * Start an extra worker, within the maximum pool size, when
+         * the pool is starved
+         */
+        COMPENSATE
+    }
+
+    /**
+     * Receives the alerts raised by a watchdog. Invoked from the
+     * watchdog thread; an exception thrown by the listener is
+     * ignored.
+     */
+    public interface Listener {
+        void onAlert(Alert alert);
+    }
+
+    /**
+     * A worker that was busy running a task when a check was made.
+     */
+    public static final class StuckWorker {
+        private final Thread thread;
+        private final long runningNanos;
+        /**
+         * The worker's task start time when the check was made, which
+         * identifies the task if it is to be interrupted.
+         */
+        final long taskStartTime;
+        private StackTraceElement[] stackTrace;
+
+        StuckWorker(Thread thread, long runningNanos, long taskStartTime) {
+            this.thread = thread;
+            this.runningNanos = runningNanos;
+            this.taskStartTime = taskStartTime;
+        }
+
+        /**
+         * Returns the worker thread.
+         */
+        public Thread getThread() {
+            return thread;
+        }
+
+        /**
+         * Returns for how long the current task had been running when
+         * the check was made.
+         */
+        public long getRunningNanos() {
+            return runningNanos;
+        }
+
+        /**
+         * Returns the stack of the worker thread, sampled just after
+         * the check.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('"').append(thread.getName()).append("\" running for ")
+                    .append(runningNanos / 1000000L).append(" ms");
+            if (stackTrace != null)
+                for (StackTraceElement e : stackTrace)
+                    sb.append("\n\tat ").append(e);
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A condition detected by a check.
+     */
+    public static final class Alert {
+        private final Kind kind;
+        private final int poolSize;
+        private final int activeCount;
+        private final int queueSize;
+        private final List<StuckWorker> workers;
+
+        Alert(Kind kind, int poolSize, int activeCount, int queueSize,
+              List<StuckWorker> workers) {
+            this.kind = kind;
+            this.poolSize = poolSize;
+            this.activeCount = activeCount;
+            this.queueSize = queueSize;
+            this.workers = Collections.unmodifiableList(workers);
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public int getQueueSize() {
+            return queueSize;
+        }
+
+        /**
+         * Returns the hung workers for {@link Kind#HUNG_TASK}, or all
+         * busy workers for {@link Kind#STARVATION}.
+         */
+        public List<StuckWorker> getWorkers() {
+            return workers;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(kind).append(": pool size = ").append(poolSize)
+                    .append(", active threads = ").append(activeCount)
+                    .append(", queued tasks = ").append(queueSize);
+            for (StuckWorker w : workers)
+                sb.append('\n').append(w);
+            return sb.toString();
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final long intervalNanos;
+    private final long hungThresholdNanos;
+    private final Listener listener;
+
+    private volatile Mitigation mitigation = Mitigation.NONE;
+    private volatile int starvationChecks = 3;
+    private volatile Thread thread;
+
+    /*
+     * Starvation tracking, accessed only by the watchdog thread.
+     */
+    private int lastQueueSize;
+    private int growingChecks;
+
+    /**
+     * Creates a watchdog for the given pool. The watchdog does nothing
+     * until {@link #start} is invoked.
+     *
+     * @param pool              the pool to watch
+     * @param interval          time between checks
+     * @param intervalUnit      the time unit of {@code interval}
+     * @param hungThreshold     how long a task may run before it is
+     *                          reported as hung
+     * @param hungThresholdUnit the time unit of {@code hungThreshold}
+     * @param listener          receives the alerts
+     * @throws IllegalArgumentException if {@code interval} or
+     *                                  {@code hungThreshold} is not positive
+     * @throws NullPointerException     if any other argument is null
+     */
+    public ThreadPoolWatchdog(ThreadPoolExecutor pool,
+                              long interval, TimeUnit intervalUnit,
+                              long hungThreshold, TimeUnit hungThresholdUnit,
+                              Listener listener) {
+        if (interval <= 0 || hungThreshold <= 0)
+            throw new IllegalArgumentException();
+        if (pool == null || listener == null)
+            throw new NullPointerException();
+        this.pool = pool;
+        this.intervalNanos = intervalUnit.toNanos(interval);
+        this.hungThresholdNanos = hungThresholdUnit.toNanos(hungThreshold);
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the mitigation applied to detected conditions.
+     *
+     * @param mitigation the mitigation
+     * @throws NullPointerException if mitigation is null
+     */
+    public void setMitigation(Mitigation mitigation) {
+        if (mitigation == null)
+            throw new NullPointerException();
+        this.mitigation = mitigation;
+    }
+
+    /**
+     * Returns the mitigation applied to detected conditions.
+     */
+    public Mitigation getMitigation() {
+        return mitigation;
+    }
+
+    /**
+     * Sets the number of consecutive checks for which all workers must
+     * be busy and the queue must grow before starvation is reported.
+     * The default is 3.
+     *
+     * @param checks the number of checks
+     * @throws IllegalArgumentException if {@code checks < 1}
+     */
+    public void setStarvationChecks(int checks) {
+        if (checks < 1)
+            throw new IllegalArgumentException();
+        this.starvationChecks = checks;
+    }
+
+    /**
+     * Starts the watchdog thread and task start tracking in the pool.
+     * Has no effect if already started.
+     */
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        pool.watchTaskStarts(true);
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "ThreadPoolWatchdog-" + pool.poolId);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the watchdog. Has no effect if not running.
+     */
+    public synchronized void stop() {
+        Thread t = thread;
+        if (t != null) {
+            thread = null;
+            pool.watchTaskStarts(false);
+            LockSupport.unpark(t);
+        }
+    }
+
+    /**
+     * Returns true if the watchdog thread is running.
+     */
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    private void watch() {
+        Thread self = Thread.currentThread();
+        while (thread == self) {
+            LockSupport.parkNanos(this, intervalNanos);
+            if (thread != self)
+                break;
+            if (pool.isTerminated()) {
+                stop();
+                break;
+            }
+            try {
+                check();
+            } catch (RuntimeException ignore) {
+                // keep watching; a failing listener must not stop checks
+            }
+        }
+    }
+
+    /**
+     * Performs one check. Called only from the watchdog thread.
+     */
+    void check() {
+        long now = System.nanoTime();
+        List<StuckWorker> busy = new ArrayList<StuckWorker>();
+        int active = pool.collectRunningTasks(now, 0L, busy);
+        int poolSize = pool.getPoolSize();
+        int queueSize = pool.getQueue().size();
+
+        List<StuckWorker> hung = new ArrayList<StuckWorker>();
+        for (StuckWorker w : busy)
+            if (w.runningNanos >= hungThresholdNanos)
+                hung.add(w);
+        if (!hung.isEmpty()) {
+            sampleStacks(hung);
+            // Sampling stacks takes a while, so a hung task may have
+            // completed since; the pool interrupts only if the worker
+            // is still running the same task.
+            if (mitigation == Mitigation.INTERRUPT) {
+                for (StuckWorker w : hung) {
+                    try {
+                        pool.interruptTask(w.thread, w.taskStartTime);
+                    } catch (SecurityException ignore) {
+                    }
+                }
+            }
+            listener.onAlert(new Alert(Kind.HUNG_TASK, poolSize, active,
+                    queueSize, hung));
+        }
+
+        if (poolSize > 0 && active >= poolSize && queueSize > lastQueueSize)
+            ++growingChecks;
+        else
+            growingChecks = 0;
+        lastQueueSize = queueSize;
+        if (growingChecks >= starvationChecks) {
+            growingChecks = 0;
+            sampleStacks(busy);
+            if (mitigation == Mitigation.COMPENSATE)
+                pool.addCompensationWorker();
+            listener.onAlert(new Alert(Kind.STARVATION, poolSize, active,
+                    queueSize, busy));
+        }
+    }
+
+    private static void sampleStacks(List<StuckWorker> workers) {
+        for (StuckWorker w : workers)
+            if (w.stackTrace == null)
+                w.stackTrace = w.thread.getStackTrace();
+    }
+}
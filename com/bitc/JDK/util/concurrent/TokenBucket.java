@@ -0,0 +1,84 @@
+package com.bitc.JDK.util.concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, used by {@link ThreadPoolExecutor} to
+ * limit the rate at which workers start tasks.
+ *
+ * <p>Implemented as the generic cell rate algorithm: instead of a
+ * token count refilled by a timer, the bucket keeps the theoretical
+ * arrival time (tat) of the next token, which each reservation
+ * advances by one emission interval with a single compare-and-set.
+ * A token reserved while tat is more than the burst tolerance ahead
+ * of now becomes usable only once it no longer is. Reservations
+ * always succeed, so waiting callers are served in the order they
+ * reserved and no token is handed out twice. A reservation that turns
+ * out not to be needed can be given back, as long as no later one has
+ * been made.
+ *
+ * <p>The rate of a bucket is fixed; the pool replaces the bucket to
+ * change it.
+ *
+ * 注：GCRA中"桶满"对应tat不晚于当前时间，此时最多可以连续无等待地预约burst个令牌
+ */
+final class TokenBucket {
+
+    final double permitsPerSecond;
+    final int burst;
+
+    /**
+     * Nanoseconds between tokens.
+     */
+    private final long interval;
+
+    /**
+     * How far tat may run ahead of now with tokens still usable at
+     * once: burst - 1 intervals.
+     */
+    private final long tolerance;
+
+    /**
+     * Theoretical arrival time of the next token, in System.nanoTime
+     * units. Starts at now, so a new bucket is full.
+     */
+    private final AtomicLong tat = new AtomicLong(System.nanoTime());
+
+    TokenBucket(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = burst;
+        this.interval = Math.max(1L, (long) (1e9 / permitsPerSecond));
+        this.tolerance = interval * (burst - 1);
+    }
+
+    /**
+     * Reserves the next token.
+     *
+     * @return the reservation, to pass to readyTime and cancel
+     */
+    long reserve() {
+        for (; ; ) {
+            long now = System.nanoTime();
+            long t = tat.get();
+            long next = ((t - now > 0L) ? t : now) + interval;
+            if (tat.compareAndSet(t, next))
+                return next;
+        }
+    }
+
+    /**
+     * Returns the System.nanoTime at which the reserved token may be
+     * used.
+     */
+    long readyTime(long reservation) {
+        return reservation - interval - tolerance;
+    }
+
+    /**
+     * Gives back a reserved token, if no token has been reserved
+     * since.
+     */
+    void cancel(long reservation) {
+        tat.compareAndSet(reservation, reservation - interval);
+    }
+}
@@ -0,0 +1,88 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 大量任务抛异常时，对比默认行为（工作线程退出，由processWorkerExit重新addWorker一个线程）
+ * 和setKeepWorkersOnTaskFailure(true)（工作线程把异常交给afterExecute和UncaughtExceptionHandler后继续执行下一个任务）
+ * 的吞吐量以及创建的线程数。
+ * <p>
+ * 参数：任务数（默认100000），失败比例（默认1.0，即全部失败）
+ */
+public class FailureStormBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        double failureRate = args.length > 1 ? Double.parseDouble(args[1]) : 1.0;
+
+        // 预热
+        run(false, tasks / 10, failureRate);
+        run(true, tasks / 10, failureRate);
+
+        for (int round = 0; round < 3; round++) {
+            run(false, tasks, failureRate);
+            run(true, tasks, failureRate);
+        }
+    }
+
+    private static void run(boolean keepWorkers, int tasks, final double failureRate)
+            throws InterruptedException {
+        final AtomicInteger threadsCreated = new AtomicInteger();
+        final AtomicInteger reported = new AtomicInteger();
+        final AtomicInteger afterExecuteFailures = new AtomicInteger();
+        final Thread.UncaughtExceptionHandler handler = new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread t, Throwable e) {
+                // 只计数，不打印堆栈
+                reported.incrementAndGet();
+            }
+        };
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                threadsCreated.incrementAndGet();
+                Thread t = new Thread(r);
+                t.setUncaughtExceptionHandler(handler);
+                return t;
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(tasks);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                if (t != null)
+                    afterExecuteFailures.incrementAndGet();
+                done.countDown();
+            }
+        };
+        pool.setKeepWorkersOnTaskFailure(keepWorkers);
+        final AtomicInteger seq = new AtomicInteger();
+        final int failEvery = failureRate > 0 ? (int) Math.round(1 / failureRate) : Integer.MAX_VALUE;
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                if (seq.incrementAndGet() % failEvery == 0)
+                    throw new IllegalStateException("task failed");
+            }
+        };
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++)
+            pool.execute(task);
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println((keepWorkers ? "keep workers:    " : "replace workers: ")
+                + tasks * TimeUnit.SECONDS.toNanos(1) / elapsed + " tasks/s, "
+                + threadsCreated.get() + " threads created, "
+                + afterExecuteFailures.get() + " failures seen by afterExecute, "
+                + reported.get() + " reported to handler");
+    }
+}
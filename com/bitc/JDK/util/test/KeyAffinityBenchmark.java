@@ -0,0 +1,102 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.util.concurrent.KeyAffinityExecutor;
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 有状态任务（按key累加计数器）的吞吐量对比：
+ * <ul>
+ * <li>共享队列：任务直接提交给线程池，同一个key的任务可能同时在多个线程上执行，计数器必须加锁</li>
+ * <li>按key亲和：通过KeyAffinityExecutor提交，同一个key的任务串行地在同一个lane上执行，计数器不需要加锁</li>
+ * <li>按key亲和+再平衡：同上，另外热点key集中的lane过载时，把空闲的bucket迁移到最空闲的lane</li>
+ * </ul>
+ * 最后检查所有计数器之和等于任务数。
+ * <p>
+ * 参数：任务数（默认2000000），key的个数（默认1024），线程数（默认4）
+ */
+public class KeyAffinityBenchmark {
+
+    /**
+     * 每个key的状态。共享队列模式下通过synchronized访问，亲和模式下直接访问
+     */
+    static final class Counter {
+        long value;
+        long checksum;
+
+        void update(long x) {
+            value++;
+            checksum = checksum * 31 + x;
+        }
+
+        synchronized void updateLocked(long x) {
+            update(x);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int keys = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        // 预热
+        for (int mode = 0; mode < 3; mode++)
+            run(mode, tasks / 10, keys, threads);
+        for (int round = 0; round < 3; round++)
+            for (int mode = 0; mode < 3; mode++)
+                run(mode, tasks, keys, threads);
+    }
+
+    private static void run(int mode, int tasks, int keys, int threads)
+            throws InterruptedException {
+        final Counter[] counters = new Counter[keys];
+        for (int i = 0; i < keys; i++)
+            counters[i] = new Counter();
+        final CountDownLatch done = new CountDownLatch(tasks);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        KeyAffinityExecutor affinity = (mode == 0) ? null
+                : new KeyAffinityExecutor(pool, threads, 4096, mode == 2);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++) {
+            // 一半的任务集中在前1/16的key上，制造热点
+            final int key = (i & 1) == 0 ? i % keys : i % Math.max(1, keys / 16);
+            final long x = i;
+            if (affinity == null) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        counters[key].updateLocked(x);
+                        done.countDown();
+                    }
+                });
+            } else {
+                affinity.execute(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        counters[key].update(x);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        long sum = 0;
+        for (Counter c : counters)
+            sum += c.value;
+        String name = mode == 0 ? "shared queue:         "
+                : mode == 1 ? "affinity:             " : "affinity + rebalance: ";
+        System.out.println(name + tasks * TimeUnit.SECONDS.toNanos(1) / elapsed + " tasks/s"
+                + (affinity != null && affinity.getRebalanceCount() > 0
+                ? ", " + affinity.getRebalanceCount() + " bucket moves" : "")
+                + (sum == tasks ? "" : ", LOST UPDATES: " + (tasks - sum)));
+    }
+}
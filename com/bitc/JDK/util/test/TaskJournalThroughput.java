@@ -0,0 +1,133 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.util.concurrent.TaskJournal;
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 对比线程池开启和关闭TaskJournal时的吞吐量，并演示重启后的任务恢复。
+ * <p>
+ * 开启journal后，每次execute都要把任务序列化并追加到内存映射文件中，等待force落盘之后才返回；
+ * 多个提交线程同时等待时，一次force会同时覆盖所有已经追加的记录（group commit），
+ * 所以提交线程越多，平均到每个任务的force开销越小。
+ * <p>
+ * 参数：提交线程数（默认4），每个线程提交的任务数（默认20000）
+ */
+public class TaskJournalThroughput {
+
+    static final AtomicInteger executed = new AtomicInteger();
+
+    /**
+     * 可序列化、幂等的任务，只有这样的任务才会被写入journal
+     */
+    static class Job implements Runnable, Serializable {
+        private static final long serialVersionUID = 1L;
+        final int id;
+        transient CountDownLatch done;
+
+        Job(int id, CountDownLatch done) {
+            this.id = id;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            executed.incrementAndGet();
+            if (done != null)
+                done.countDown();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int submitters = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int perSubmitter = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        Path dir = Files.createTempDirectory("journal");
+        Path file = dir.resolve("tasks.journal");
+
+        // 先各跑一轮预热
+        run(null, submitters, perSubmitter / 10);
+        try (TaskJournal journal = TaskJournal.open(file)) {
+            run(journal, submitters, perSubmitter / 10);
+        }
+
+        long off = run(null, submitters, perSubmitter);
+        long on;
+        try (TaskJournal journal = TaskJournal.open(file)) {
+            on = run(journal, submitters, perSubmitter);
+        }
+        System.out.println("journal off: " + off + " tasks/s");
+        System.out.println("journal on:  " + on + " tasks/s");
+
+        recover(file);
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(dir);
+    }
+
+    private static long run(TaskJournal journal, int submitters, final int perSubmitter)
+            throws InterruptedException {
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.setJournal(journal);
+        final CountDownLatch done = new CountDownLatch(submitters * perSubmitter);
+        Thread[] threads = new Thread[submitters];
+        long start = System.nanoTime();
+        for (int t = 0; t < submitters; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perSubmitter; i++)
+                        pool.execute(new Job(i, done));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        return submitters * (long) perSubmitter * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+
+    /**
+     * 模拟进程在任务执行前停止：暂停的线程池只接收任务不执行，
+     * 关闭journal后重新打开，未完成的任务会交给新的线程池重新执行
+     */
+    private static void recover(Path file) throws IOException, InterruptedException {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.pause();
+        TaskJournal journal = TaskJournal.open(file);
+        pool.setJournal(journal);
+        for (int i = 0; i < 100; i++)
+            pool.execute(new Job(i, null));
+        journal.close();
+        // shutdownNow返回的任务在journal中仍然是未完成的；
+        // 已经取到任务的工作线程还会执行完手上的任务，但journal已关闭，完成标记写不进去，重启后同样会重新执行
+        pool.shutdownNow();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+
+        executed.set(0);
+        try (TaskJournal reopened = TaskJournal.open(file)) {
+            System.out.println("recovered " + reopened.getRecoveredCount() + " tasks");
+            ThreadPoolExecutor restarted = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            restarted.setJournal(reopened);
+            restarted.shutdown();
+            restarted.awaitTermination(1, TimeUnit.MINUTES);
+        }
+        System.out.println("replayed " + executed.get() + " tasks");
+        try (TaskJournal again = TaskJournal.open(file)) {
+            System.out.println("left after replay: " + again.getRecoveredCount());
+        }
+    }
+}
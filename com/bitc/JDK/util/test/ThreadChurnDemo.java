@@ -0,0 +1,74 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 负载在忙和闲之间来回切换时，对比allowCoreThreadTimeOut(true)下的默认行为
+ * （每个空闲线程超过keepAliveTime就各自退出，下一波任务到来时再addWorker）
+ * 和setRetirementPolicy（按需求的指数移动平均、每个周期最多退出K个线程）
+ * 创建的线程数以及线程数的波动。
+ * <p>
+ * 参数：波数（默认20），每波的任务数（默认16），两波之间的空闲毫秒数（默认300）
+ */
+public class ThreadChurnDemo {
+
+    public static void main(String[] args) throws InterruptedException {
+        int waves = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int burst = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long idleMillis = args.length > 2 ? Long.parseLong(args[2]) : 300L;
+
+        run(false, waves, burst, idleMillis);
+        run(true, waves, burst, idleMillis);
+    }
+
+    private static void run(boolean smoothed, int waves, int burst, long idleMillis)
+            throws InterruptedException {
+        final AtomicInteger threadsCreated = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                threadsCreated.incrementAndGet();
+                return new Thread(r);
+            }
+        };
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(burst, burst, 100L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        if (smoothed)
+            // 每秒最多退出2个线程，需求样本的权重每5秒减半
+            pool.setRetirementPolicy(2, 1, 5, TimeUnit.SECONDS);
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        int minSize = Integer.MAX_VALUE;
+        int maxSize = 0;
+        for (int w = 0; w < waves; w++) {
+            for (int i = 0; i < burst; i++)
+                pool.execute(task);
+            // 在空闲期间每10毫秒采样一次线程数
+            for (long t = 0; t < idleMillis; t += 10) {
+                Thread.sleep(10);
+                int size = pool.getPoolSize();
+                minSize = Math.min(minSize, size);
+                maxSize = Math.max(maxSize, size);
+            }
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.println((smoothed ? "retirement policy: " : "independent:       ")
+                + threadsCreated.get() + " threads created, pool size "
+                + minSize + ".." + maxSize);
+    }
+}
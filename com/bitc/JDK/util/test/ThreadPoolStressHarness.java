@@ -0,0 +1,632 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.lang.ThreadLocal;
+import com.bitc.JDK.util.concurrent.SizedTask;
+import com.bitc.JDK.util.concurrent.TaskJournal;
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+import com.bitc.JDK.util.concurrent.ThreadPoolSnapshot;
+import com.bitc.JDK.util.concurrent.ThreadPoolWatchdog;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ThreadPoolExecutor状态机的压力测试：多个提交线程按随机生成的操作序列并发地调用
+ * execute、remove、cancel+purge、setCorePoolSize/setMaximumPoolSize、setKeepAliveTime、
+ * pause/resume、shutdown和shutdownNow，同时有一个监视线程不断取snapshot，
+ * 专门考验ctl的状态转换（RUNNING→SHUTDOWN→STOP→TIDYING→TERMINATED）、addWorker的竞争和tryTerminate。
+ * <p>
+ * 检查的不变量：
+ * <ul>
+ * <li>每个被接受的任务最后恰好有一个去处：执行一次，或被remove，或被purge，或由shutdownNow返回</li>
+ * <li>暂停时排在队列中的任务一定能被remove找到，被cancel的一定能被purge清除；shutdownNow返回的是提交时的任务</li>
+ * <li>任务执行时看到的是提交线程的上下文（CONTEXT_CARRIER模式）</li>
+ * <li>没有挂起的任务不会被watchdog中断（WATCHDOG模式）</li>
+ * <li>终止后字节预算全部归还（BYTE_BUDGET模式）</li>
+ * <li>isShutdown()已经为true之后提交的任务一定被拒绝</li>
+ * <li>同时执行的任务数不超过设置过的核心线程数和最大线程数</li>
+ * <li>snapshot中活跃线程数不超过线程数，运行状态不倒退</li>
+ * <li>terminated()恰好调用一次，调用时队列为空</li>
+ * <li>线程池一定能终止，终止后线程数、活跃线程数为0，队列为空，完成任务数等于执行次数</li>
+ * <li>除了故意抛出的异常，工作线程没有其他未捕获的异常</li>
+ * </ul>
+ * 同时记录每种模式的吞吐量（任务数/秒），用来对比setLatencyTracking等各种模式的开销，
+ * 以及修改ThreadPoolExecutor前后的性能。
+ * <p>
+ * 每一轮的线程池配置、队列类型、每个提交线程的操作序列和任务的工作量都由种子决定，
+ * 各模式在同一轮使用同一个种子。线程的交错无法固定，有多少任务因队列满被拒绝也随之变化，
+ * 所以吞吐量要多跑几轮再比较。出错时打印该轮的种子，用这个种子和轮数1重新运行即可重放同样的操作序列。
+ * <p>
+ * 参数：种子（默认42），每种模式的轮数（默认20），提交线程数（默认4），
+ * 每个提交线程的操作数（默认2000），模式（默认全部，用逗号分隔，例如PLAIN,RETIREMENT）
+ */
+public class ThreadPoolStressHarness {
+
+    /**
+     * 每种模式对线程池的额外配置
+     */
+    enum Mode {
+        PLAIN {
+            @Override
+            void configure(Round round) {
+            }
+        },
+        LATENCY_TRACKING {
+            @Override
+            void configure(Round round) {
+                round.pool.setLatencyTracking(true);
+            }
+        },
+        KEEP_WORKERS_ON_FAILURE {
+            @Override
+            void configure(Round round) {
+                round.pool.setKeepWorkersOnTaskFailure(true);
+            }
+        },
+        RETIREMENT {
+            @Override
+            void configure(Round round) {
+                round.pool.allowCoreThreadTimeOut(true);
+                round.pool.setRetirementPolicy(4, 10, 50, TimeUnit.MILLISECONDS);
+            }
+        },
+        THREAD_LOCAL_SCRUBBING {
+            @Override
+            void configure(Round round) {
+                round.pool.setThreadLocalScrubbing(true);
+            }
+        },
+        /**
+         * 提交线程都设置了CONTEXT，任务在队列中是包装过的
+         */
+        CONTEXT_CARRIER {
+            @Override
+            void configure(Round round) {
+                round.pool.addContextCarrier(CONTEXT);
+            }
+        },
+        /**
+         * 任务都是Serializable的，先写入日志再入队，同样是包装过的
+         */
+        JOURNAL {
+            @Override
+            void configure(Round round) {
+                try {
+                    round.journalFile = Files.createTempFile("stress", ".journal");
+                    round.journal = TaskJournal.open(round.journalFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                round.pool.setJournal(round.journal);
+            }
+        },
+        /**
+         * 速率足够高，不至于让一轮跑太久，但工作线程要先拿令牌再取任务
+         */
+        DISPATCH_RATE {
+            @Override
+            void configure(Round round) {
+                round.pool.setDispatchRate(200000.0, 16);
+            }
+        },
+        /**
+         * 预算只够几十个任务同时排队，其余的因超出预算被拒绝
+         */
+        BYTE_BUDGET {
+            @Override
+            void configure(Round round) {
+                round.pool.setByteBudget(32 * 1024);
+            }
+        },
+        /**
+         * 运行超过1毫秒的任务被中断
+         */
+        WATCHDOG {
+            @Override
+            void configure(Round round) {
+                round.watchdog = new ThreadPoolWatchdog(round.pool, 1, TimeUnit.MILLISECONDS,
+                        HUNG_MILLIS, TimeUnit.MILLISECONDS, new ThreadPoolWatchdog.Listener() {
+                    @Override
+                    public void onAlert(ThreadPoolWatchdog.Alert alert) {
+                    }
+                });
+                round.watchdog.setMitigation(ThreadPoolWatchdog.Mitigation.INTERRUPT);
+                round.watchdog.start();
+            }
+        };
+
+        abstract void configure(Round round);
+    }
+
+    /**
+     * CONTEXT_CARRIER模式传递的上下文：提交线程的编号
+     */
+    static final ThreadLocal<Integer> CONTEXT = new ThreadLocal<Integer>();
+
+    /**
+     * WATCHDOG模式下任务运行多久算挂起
+     */
+    static final long HUNG_MILLIS = 1L;
+
+    private static final String[] RUN_STATES = {"RUNNING", "SHUTDOWN", "STOP", "TIDYING", "TERMINATED"};
+
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42L;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int submitters = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int ops = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+        List<Mode> modes = new ArrayList<Mode>();
+        if (args.length > 4) {
+            for (String name : args[4].split(","))
+                modes.add(Mode.valueOf(name.trim()));
+        } else {
+            for (Mode mode : Mode.values())
+                modes.add(mode);
+        }
+
+        // 预热，不计入结果
+        for (Mode mode : modes)
+            new Round(mode, seed, submitters, ops / 4).run();
+
+        int failedRounds = 0;
+        for (Mode mode : modes) {
+            long tasks = 0L;
+            long nanos = 0L;
+            for (int r = 0; r < rounds; r++) {
+                Round round = new Round(mode, seed + r, submitters, ops);
+                round.run();
+                tasks += round.executed.get();
+                nanos += round.elapsedNanos;
+                if (!round.violations.isEmpty()) {
+                    failedRounds++;
+                    System.out.println("模式 " + mode + " 种子 " + (seed + r) + " 违反不变量：");
+                    int shown = 0;
+                    for (String v : round.violations) {
+                        if (shown++ == 20) {
+                            System.out.println("  ……共 " + round.violations.size() + " 条");
+                            break;
+                        }
+                        System.out.println("  " + v);
+                    }
+                }
+            }
+            System.out.printf("%-24s %d 轮，执行 %d 个任务，吞吐量 %.0f 任务/秒%n",
+                    mode, rounds, tasks, tasks * 1e9 / Math.max(nanos, 1L));
+        }
+        if (failedRounds > 0) {
+            System.out.println(failedRounds + " 轮失败");
+            System.exit(1);
+        }
+        System.out.println("全部通过");
+    }
+
+    /**
+     * 故意抛出的异常，用来让工作线程退出（或在KEEP_WORKERS_ON_FAILURE模式下存活）
+     */
+    static final class StressFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StressFailure() {
+            super(null, null, false, false);
+        }
+    }
+
+    /**
+     * 被跟踪的任务：记录执行、remove和被shutdownNow返回的次数，最后据此核对去处。
+     * 用FutureTask是为了能cancel，从而让purge有东西可清理。
+     * 实现Serializable是为了在JOURNAL模式下被写入日志，实现SizedTask是为了在BYTE_BUDGET模式下占用预算；
+     * 日志只写不读，FutureTask没有无参构造器，读不回来也无妨
+     */
+    static final class Tracked extends FutureTask<Void> implements Serializable, SizedTask {
+        private static final long serialVersionUID = 1L;
+
+        final transient Round round;
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicInteger removals = new AtomicInteger();
+        final AtomicInteger drains = new AtomicInteger();
+        final boolean fails;
+        final int work;
+        /**
+         * 提交线程的上下文
+         */
+        final Integer context = CONTEXT.get();
+        /**
+         * 任务是否被中断过，由执行它的工作线程设置
+         */
+        volatile boolean interrupted;
+
+        Tracked(Round round, final int work, final boolean sleeps, boolean fails) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    if (sleeps) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            // shutdownNow或watchdog
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    spin(work);
+                }
+            }, null);
+            this.round = round;
+            this.work = work;
+            this.fails = fails;
+        }
+
+        @Override
+        public long estimatedBytes() {
+            return work;
+        }
+
+        @Override
+        public void run() {
+            runs.incrementAndGet();
+            long start = System.nanoTime();
+            int n = round.running.incrementAndGet();
+            int bound = round.sizeBound.get();
+            if (n > bound)
+                round.violations.add("同时执行 " + n + " 个任务，超过了设置过的线程数上界 " + bound);
+            if (round.mode == Mode.CONTEXT_CARRIER && CONTEXT.get() != context)
+                round.violations.add("任务看到的上下文是 " + CONTEXT.get() + "，提交时是 " + context);
+            try {
+                super.run();
+            } finally {
+                round.running.decrementAndGet();
+            }
+            // shutdownNow先进入STOP再中断，所以这时isShutdown一定已经为true
+            if (Thread.interrupted() && !round.pool.isShutdown()) {
+                long elapsed = System.nanoTime() - start;
+                if (round.mode != Mode.WATCHDOG)
+                    round.violations.add("任务被中断了，但线程池没有关闭");
+                else if (elapsed < TimeUnit.MILLISECONDS.toNanos(HUNG_MILLIS) / 2)
+                    round.violations.add("只运行了 " + elapsed + " 纳秒的任务被watchdog中断了");
+            }
+            if (fails)
+                throw new StressFailure();
+        }
+    }
+
+    static volatile long sink;
+
+    static void spin(int work) {
+        long x = work;
+        for (int i = 0; i < work; i++)
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        sink = x;
+    }
+
+    /**
+     * 记录terminated()的调用
+     */
+    static final class StressPool extends ThreadPoolExecutor {
+        final AtomicInteger terminatedCalls = new AtomicInteger();
+        final ConcurrentLinkedQueue<String> violations;
+
+        StressPool(int core, int max, long keepAliveMillis, BlockingQueue<Runnable> queue,
+                   ThreadFactory factory, ConcurrentLinkedQueue<String> violations) {
+            super(core, max, keepAliveMillis, TimeUnit.MILLISECONDS, queue, factory);
+            this.violations = violations;
+        }
+
+        @Override
+        protected void terminated() {
+            terminatedCalls.incrementAndGet();
+            if (!getQueue().isEmpty())
+                violations.add("terminated()调用时队列中还有 " + getQueue().size() + " 个任务");
+        }
+    }
+
+    /**
+     * 一轮：按种子生成线程池和各提交线程的操作序列，并发执行，然后核对
+     */
+    static final class Round {
+        final Mode mode;
+        final long seed;
+        final int submitters;
+        final int ops;
+        final ConcurrentLinkedQueue<String> violations = new ConcurrentLinkedQueue<String>();
+        final ConcurrentLinkedQueue<Tracked> accepted = new ConcurrentLinkedQueue<Tracked>();
+        final AtomicInteger executed = new AtomicInteger();
+        /**
+         * 设置过的核心线程数和最大线程数中的最大值，同时执行的任务数不能超过它。
+         * 不用getPoolSize检查，因为正在退出的线程还在workers中，线程数可能暂时超过最大线程数
+         */
+        final AtomicInteger sizeBound = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        long elapsedNanos;
+
+        StressPool pool;
+        ThreadPoolWatchdog watchdog;
+        TaskJournal journal;
+        Path journalFile;
+        /**
+         * 关闭线程池的提交线程和时机，以及是否随后升级为shutdownNow
+         */
+        int closer;
+        int closeAt;
+        int stopAt;
+
+        Round(Mode mode, long seed, int submitters, int ops) {
+            this.mode = mode;
+            this.seed = seed;
+            this.submitters = submitters;
+            this.ops = ops;
+        }
+
+        void run() throws InterruptedException {
+            // SplittableRandom会打散种子，相邻的种子也得到不相关的序列
+            SplittableRandom rnd = new SplittableRandom(seed);
+            int core = 1 + rnd.nextInt(4);
+            int max = core + rnd.nextInt(4);
+            long keepAlive = 1 + rnd.nextInt(20);
+            BlockingQueue<Runnable> queue;
+            // SynchronousQueue的轮次大部分任务被拒绝，所以少一些
+            switch (rnd.nextInt(5)) {
+                case 0:
+                case 1:
+                    queue = new LinkedBlockingQueue<Runnable>();
+                    break;
+                case 2:
+                case 3:
+                    queue = new ArrayBlockingQueue<Runnable>(1 + rnd.nextInt(256));
+                    break;
+                default:
+                    queue = new SynchronousQueue<Runnable>();
+                    break;
+            }
+            closer = rnd.nextInt(submitters);
+            closeAt = ops / 2 + rnd.nextInt(ops / 2 + 1);
+            // 一半的轮次在shutdown之后再shutdownNow，测试SHUTDOWN→STOP
+            stopAt = rnd.nextBoolean() ? closeAt + rnd.nextInt(ops - closeAt + 1) : -1;
+            sizeBound.set(max);
+
+            ThreadFactory factory = new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                        @Override
+                        public void uncaughtException(Thread t, Throwable e) {
+                            if (!(e instanceof StressFailure))
+                                violations.add("工作线程的未捕获异常：" + e);
+                        }
+                    });
+                    return t;
+                }
+            };
+            pool = new StressPool(core, max, keepAlive, queue, factory, violations);
+            mode.configure(this);
+            // 主线程也有上下文，和各提交线程的都不同
+            CONTEXT.set(submitters);
+            try {
+                if (!(queue instanceof SynchronousQueue))
+                    probe(core);
+            } finally {
+                CONTEXT.remove();
+            }
+
+            final AtomicInteger finished = new AtomicInteger();
+            Thread monitor = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    int lastRank = 0;
+                    while (finished.get() == 0) {
+                        lastRank = checkSnapshot(lastRank);
+                        Thread.yield();
+                    }
+                }
+            });
+            Thread[] threads = new Thread[submitters];
+            for (int i = 0; i < submitters; i++) {
+                final int id = i;
+                final long submitterSeed = rnd.nextLong();
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        CONTEXT.set(id);
+                        submit(id, new SplittableRandom(submitterSeed));
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            monitor.start();
+            for (Thread t : threads)
+                t.start();
+            for (Thread t : threads)
+                t.join();
+            pool.shutdown();
+            if (!pool.awaitTermination(30, TimeUnit.SECONDS)) {
+                violations.add("30秒内没有终止：" + pool);
+                pool.shutdownNow();
+            }
+            elapsedNanos = System.nanoTime() - start;
+            finished.set(1);
+            monitor.join();
+            if (watchdog != null)
+                watchdog.stop();
+            verify();
+            if (journal != null) {
+                try {
+                    journal.close();
+                    Files.deleteIfExists(journalFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        /**
+         * 在提交线程开始之前，单线程地检查remove和purge：暂停线程池，先用core个任务让核心线程各拿着
+         * 第一个任务等待恢复，之后的任务一定在队列中，remove必须能找到，cancel之后purge必须能清除
+         */
+        void probe(int core) {
+            pool.pause();
+            for (int i = 0; i < core; i++) {
+                Tracked held = new Tracked(this, 0, false, false);
+                pool.execute(held);
+                accepted.add(held);
+            }
+            Tracked removed = new Tracked(this, 0, false, false);
+            pool.execute(removed);
+            accepted.add(removed);
+            if (pool.remove(removed))
+                removed.removals.incrementAndGet();
+            else
+                violations.add("remove没有找到暂停时排在队列中的任务");
+            Tracked cancelled = new Tracked(this, 0, false, false);
+            pool.execute(cancelled);
+            accepted.add(cancelled);
+            cancelled.cancel(false);
+            pool.purge();
+            if (!pool.getQueue().isEmpty())
+                violations.add("purge之后队列中还有 " + pool.getQueue().size() + " 个任务");
+            pool.resume();
+        }
+
+        /**
+         * 一个提交线程的操作序列
+         */
+        void submit(int id, SplittableRandom rnd) {
+            List<Tracked> mine = new ArrayList<Tracked>();
+            for (int op = 0; op < ops; op++) {
+                if (id == closer && op == closeAt)
+                    pool.shutdown();
+                if (id == closer && op == stopAt) {
+                    int foreign = 0;
+                    for (Runnable r : pool.shutdownNow()) {
+                        if (r instanceof Tracked)
+                            ((Tracked) r).drains.incrementAndGet();
+                        else
+                            foreign++;
+                    }
+                    if (foreign > 0)
+                        violations.add("shutdownNow返回的任务中有 " + foreign + " 个不是提交时的任务");
+                }
+                int dice = rnd.nextInt(100);
+                if (dice < 70) {
+                    // 工作量：大多数很短，少数睡眠1毫秒让队列积压，2%抛异常
+                    Tracked t = new Tracked(this, rnd.nextInt(2000), rnd.nextInt(100) == 0,
+                            rnd.nextInt(50) == 0);
+                    boolean wasShutdown = pool.isShutdown();
+                    try {
+                        pool.execute(t);
+                        accepted.add(t);
+                        mine.add(t);
+                        if (wasShutdown)
+                            violations.add("shutdown之后提交的任务被接受了");
+                    } catch (RejectedExecutionException e) {
+                        // 队列满或已关闭
+                    }
+                } else if (dice < 80) {
+                    if (!mine.isEmpty()) {
+                        Tracked t = mine.get(mine.size() - 1 - rnd.nextInt(Math.min(mine.size(), 16)));
+                        if (pool.remove(t))
+                            t.removals.incrementAndGet();
+                    }
+                } else if (dice < 85) {
+                    if (!mine.isEmpty())
+                        mine.get(mine.size() - 1 - rnd.nextInt(Math.min(mine.size(), 16))).cancel(false);
+                } else if (dice < 87) {
+                    pool.purge();
+                } else if (dice < 93) {
+                    resize(rnd);
+                } else if (dice < 95) {
+                    pool.setKeepAliveTime(1 + rnd.nextInt(20), TimeUnit.MILLISECONDS);
+                } else if (dice < 97) {
+                    pool.pause();
+                } else {
+                    pool.resume();
+                }
+            }
+        }
+
+        /**
+         * 各提交线程同时调整大小。新的最大线程数小于核心线程数时抛出IllegalArgumentException，
+         * 这是预期的；setCorePoolSize不检查最大线程数，所以线程数的上界要把核心线程数也算进去
+         */
+        void resize(SplittableRandom rnd) {
+            boolean core = rnd.nextBoolean();
+            int size = core ? 1 + rnd.nextInt(4) : 1 + rnd.nextInt(8);
+            int prev;
+            while ((prev = sizeBound.get()) < size && !sizeBound.compareAndSet(prev, size)) {
+            }
+            try {
+                if (core)
+                    pool.setCorePoolSize(size);
+                else
+                    pool.setMaximumPoolSize(size);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        /**
+         * 监视线程：snapshot只读一次ctl，线程数和活跃线程数都由它算出，所以其中的数字可以互相比较
+         */
+        int checkSnapshot(int lastRank) {
+            ThreadPoolSnapshot s = pool.snapshot();
+            int rank = 0;
+            while (!RUN_STATES[rank].equals(s.getRunState()))
+                rank++;
+            if (rank < lastRank)
+                violations.add("运行状态倒退：" + RUN_STATES[lastRank] + " -> " + s.getRunState());
+            if (s.getActiveCount() > s.getPoolSize())
+                violations.add("活跃线程数 " + s.getActiveCount() + " 大于线程数 " + s.getPoolSize());
+            if (s.getActiveCount() < 0)
+                violations.add("活跃线程数为负：" + s.getActiveCount());
+            if (s.getPoolSize() > s.getLargestPoolSize())
+                violations.add("线程数 " + s.getPoolSize() + " 大于历史最大线程数 " + s.getLargestPoolSize());
+            return rank;
+        }
+
+        /**
+         * 线程池终止后核对每个任务的去处和线程池的最终状态
+         */
+        void verify() {
+            if (!pool.isTerminated())
+                return; // 已经报告过没有终止
+            if (pool.terminatedCalls.get() != 1)
+                violations.add("terminated()调用了 " + pool.terminatedCalls.get() + " 次");
+            if (pool.getPoolSize() != 0 || pool.getActiveCount() != 0)
+                violations.add("终止后线程数 " + pool.getPoolSize() + "，活跃线程数 " + pool.getActiveCount());
+            if (!pool.getQueue().isEmpty())
+                violations.add("终止后队列中还有 " + pool.getQueue().size() + " 个任务");
+            long runs = 0L;
+            for (Tracked t : accepted) {
+                int r = t.runs.get();
+                int rm = t.removals.get();
+                int dr = t.drains.get();
+                runs += r;
+                if (r > 1)
+                    violations.add("任务执行了 " + r + " 次");
+                else if (r + rm + dr > 1)
+                    violations.add("任务有多个去处：执行 " + r + "，remove " + rm + "，shutdownNow返回 " + dr);
+                else if (r + rm + dr == 0 && !t.isCancelled())
+                    violations.add("任务丢失：没有执行，没有被remove，也没有被shutdownNow返回");
+                // 其余是被cancel后由purge清理掉的
+            }
+            executed.set((int) runs);
+            if (pool.getCompletedTaskCount() != runs)
+                violations.add("完成任务数 " + pool.getCompletedTaskCount() + " 不等于执行次数 " + runs);
+            if (pool.getBudgetedBytes() != 0L)
+                violations.add("终止后字节预算还占用着 " + pool.getBudgetedBytes() + " 字节");
+        }
+    }
+}
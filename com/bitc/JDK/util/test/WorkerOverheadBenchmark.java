@@ -0,0 +1,58 @@
+package com.bitc.JDK.util.test;
+
+import com.bitc.JDK.util.concurrent.ThreadPoolExecutor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测量工作线程每执行一个任务的固定开销：getTask、Worker加锁解锁、钩子方法等。
+ * <p>
+ * 先暂停线程池，把任务全部放进队列，再恢复并计时直到所有任务执行完，
+ * 这样提交线程和工作线程不会互相干扰，测到的只是工作线程循环本身。任务是空任务。
+ * <p>
+ * 参数：任务数（默认2000000），工作线程数（默认1）
+ */
+public class WorkerOverheadBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int tasks = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+        // 预热
+        for (int i = 0; i < 3; i++)
+            run(tasks / 10, threads);
+        for (int round = 0; round < 5; round++)
+            System.out.println(run(tasks, threads) + " ns/task");
+    }
+
+    private static long run(int tasks, int threads) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        pool.prestartAllCoreThreads();
+        pool.pause();
+        Runnable empty = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int i = 0; i < tasks - 1; i++)
+            pool.execute(empty);
+        // 最后一个任务在所有任务都执行完之后（单线程时）才会被取到
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        long start = System.nanoTime();
+        pool.resume();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.MINUTES);
+        return elapsed / tasks;
+    }
+}